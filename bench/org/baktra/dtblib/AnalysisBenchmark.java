@@ -0,0 +1,85 @@
+package org.baktra.dtblib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of binary file analysis and of operations on analyzed files
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({"1", "64", "1024"})
+    public int segmentCount;
+
+    @Param({"64", "4096", "8192"})
+    public int segmentSize;
+
+    private int[] fileData;
+    private File file;
+    private DOS2Binary analyzed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        byte[] data = BenchmarkData.createBinary(segmentCount, segmentSize, 0x1000);
+        fileData = BenchmarkData.toIntArray(data);
+
+        file = File.createTempFile("dtblib-bench", ".xex");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        }
+
+        analyzed = new DOS2Binary(file.getPath());
+        analyzed.analyzeFromFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        file.delete();
+    }
+
+    @Benchmark
+    public DOS2Binary analyzeFromData() throws Exception {
+        DOS2Binary dtb = new DOS2Binary("bench");
+        dtb.analyzeFromData(fileData);
+        return dtb;
+    }
+
+    @Benchmark
+    public DOS2Binary analyzeFromFile() throws Exception {
+        DOS2Binary dtb = new DOS2Binary(file.getPath());
+        dtb.analyzeFromFile();
+        return dtb;
+    }
+
+    @Benchmark
+    public String[] getListing() {
+        return analyzed.getListing();
+    }
+
+    @Benchmark
+    public DOS2Binary deriveFileWithMaxSegmentSize() throws Exception {
+        return analyzed.deriveFileWithMaxSegmentSize(1_024);
+    }
+
+}
@@ -0,0 +1,308 @@
+package org.baktra.dtblib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic input data for the benchmarks
+ */
+class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Create binary file with data segments of equal size, all loaded to the
+     * same address, followed by an INIT and a RUN segment
+     *
+     * @param segmentCount Number of data segments
+     * @param segmentSize Size of each data segment
+     * @param address First address of each data segment
+     * @return Binary file
+     */
+    static byte[] createBinary(int segmentCount, int segmentSize, int address) {
+        return createBinary(segmentCount, segmentSize, address, 0);
+    }
+
+    /**
+     * Create binary file with data segments of equal size, followed by an
+     * INIT and a RUN segment
+     *
+     * @param segmentCount Number of data segments
+     * @param segmentSize Size of each data segment
+     * @param address First address of the first data segment
+     * @param step Address difference between two data segments
+     * @return Binary file
+     */
+    static byte[] createBinary(int segmentCount, int segmentSize, int address, int step) {
+
+        Random r = new Random(segmentCount * 31L + segmentSize);
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(2 + segmentCount * (segmentSize + 4) + 12);
+        byte[] data = new byte[segmentSize];
+
+        bo.write(255);
+        bo.write(255);
+
+        for (int i = 0; i < segmentCount; i++) {
+            int first = address + i * step;
+            writeHeader(bo, first, first + segmentSize - 1);
+            r.nextBytes(data);
+            bo.write(data, 0, data.length);
+        }
+
+        writeHeader(bo, 738, 739);
+        bo.write(address % 256);
+        bo.write(address / 256);
+        writeHeader(bo, 736, 737);
+        bo.write(address % 256);
+        bo.write(address / 256);
+
+        return bo.toByteArray();
+    }
+
+    static int[] toIntArray(byte[] data) {
+        return DTBUtils.getAsIntArray(data);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream bo, int first, int last) {
+        bo.write(first % 256);
+        bo.write(first / 256);
+        bo.write(last % 256);
+        bo.write(last / 256);
+    }
+
+    /**
+     * Create LZ4 stream. The stream alternates literal runs and matches that
+     * repeat the preceding literal run
+     *
+     * @param size Decompressed size
+     * @param literalLength Length of each literal run
+     * @param matchLength Length of each match, at least 4
+     * @return LZ4 stream
+     */
+    static byte[] createLZ4Stream(int size, int literalLength, int matchLength) {
+
+        Random r = new Random(size);
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        int produced = 0;
+
+        while (true) {
+            int litLen = Math.min(literalLength, size - produced);
+            int mLen = Math.min(matchLength, size - produced - litLen);
+            boolean last = mLen < 4;
+            if (last) {
+                litLen = size - produced;
+            }
+
+            bo.write((Math.min(litLen, 15) << 4) | (last ? 0 : Math.min(mLen - 4, 15)));
+            if (litLen >= 15) {
+                writeLZ4Length(bo, litLen - 15);
+            }
+            for (int i = 0; i < litLen; i++) {
+                bo.write(r.nextInt(256));
+            }
+            produced += litLen;
+
+            if (last) {
+                bo.write(0);
+                bo.write(0);
+                return bo.toByteArray();
+            }
+
+            bo.write(litLen % 256);
+            bo.write(litLen / 256);
+            if (mLen - 4 >= 15) {
+                writeLZ4Length(bo, mLen - 4 - 15);
+            }
+            produced += mLen;
+        }
+    }
+
+    private static void writeLZ4Length(ByteArrayOutputStream bo, int length) {
+        while (length >= 255) {
+            bo.write(255);
+            length -= 255;
+        }
+        bo.write(length);
+    }
+
+    /**
+     * Create ZX0 stream. The stream alternates literal runs and matches that
+     * repeat the preceding literal run
+     *
+     * @param size Decompressed size
+     * @param literalLength Length of each literal run
+     * @param matchLength Length of each match, at least 2
+     * @return ZX0 stream
+     */
+    static byte[] createZX0Stream(int size, int literalLength, int matchLength) {
+
+        Random r = new Random(size);
+        BitWriter bw = new BitWriter();
+        int produced = 0;
+        boolean first = true;
+
+        while (produced < size) {
+            int litLen = Math.min(literalLength, size - produced);
+            int mLen = Math.min(matchLength, size - produced - litLen);
+            if (mLen < 2) {
+                litLen = size - produced;
+                mLen = 0;
+            }
+
+            /*Literal run*/
+            if (!first) {
+                bw.writeBit(0);
+            }
+            first = false;
+            writeZX0Gamma(bw, litLen);
+            for (int i = 0; i < litLen; i++) {
+                bw.writeByte(r.nextInt(256));
+            }
+            produced += litLen;
+
+            /*Match from new offset*/
+            if (mLen > 0) {
+                int offset = litLen;
+                bw.writeBit(1);
+                writeZX0Gamma(bw, (offset - 1) / 128 + 1);
+                bw.writeByte((127 - ((offset - 1) % 128)) << 1);
+                bw.backTrack();
+                writeZX0Gamma(bw, mLen - 1);
+                produced += mLen;
+            }
+        }
+
+        /*End marker*/
+        bw.writeBit(1);
+        writeZX0Gamma(bw, 256);
+        return bw.toByteArray();
+    }
+
+    private static void writeZX0Gamma(BitWriter bw, int value) {
+        int mask = Integer.highestOneBit(value) >> 1;
+        while (mask != 0) {
+            bw.writeBit(0);
+            bw.writeBit((value & mask) != 0 ? 1 : 0);
+            mask >>= 1;
+        }
+        bw.writeBit(1);
+    }
+
+    /**
+     * Create aPLib stream. The stream alternates literal runs and matches
+     * that repeat the preceding literal run
+     *
+     * @param size Decompressed size
+     * @param literalLength Length of each literal run, 128 to 1279
+     * @param matchLength Length of each match, at least 2
+     * @return aPLib stream
+     */
+    static byte[] createAPlibStream(int size, int literalLength, int matchLength) {
+
+        Random r = new Random(size);
+        BitWriter bw = new BitWriter();
+        int produced = 0;
+
+        /*First byte verbatim*/
+        bw.writeByte(r.nextInt(256));
+        produced++;
+        int sinceMatch = 1;
+
+        while (produced < size) {
+            int litLen = Math.min(literalLength - sinceMatch, size - produced);
+            int mLen = Math.min(matchLength, size - produced - litLen);
+
+            for (int i = 0; i < litLen; i++) {
+                bw.writeBit(0);
+                bw.writeByte(r.nextInt(256));
+            }
+            produced += litLen;
+            sinceMatch = 0;
+
+            if (mLen >= 2) {
+                int offset = literalLength;
+                bw.writeBit(1);
+                bw.writeBit(0);
+                writeAPlibGamma(bw, (offset >> 8) + 3);
+                bw.writeByte(offset & 0xFF);
+                writeAPlibGamma(bw, mLen);
+                produced += mLen;
+            }
+            else {
+                for (int i = 0; i < mLen; i++) {
+                    bw.writeBit(0);
+                    bw.writeByte(r.nextInt(256));
+                }
+                produced += mLen;
+            }
+        }
+
+        /*End marker*/
+        bw.writeBit(1);
+        bw.writeBit(1);
+        bw.writeBit(0);
+        bw.writeByte(0);
+        return bw.toByteArray();
+    }
+
+    private static void writeAPlibGamma(BitWriter bw, int value) {
+        int mask = Integer.highestOneBit(value) >> 1;
+        while (mask != 0) {
+            bw.writeBit((value & mask) != 0 ? 1 : 0);
+            mask >>= 1;
+            bw.writeBit(mask != 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Writer of interleaved bytes and bit groups, as read by the ZX0 and
+     * aPLib decompressors
+     */
+    private static class BitWriter {
+
+        private byte[] pending = new byte[0];
+        private int bitsIndex;
+        private int bitsMask;
+        private boolean backTrack;
+        private int size;
+
+        void writeByte(int b) {
+            ensure();
+            pending[size++] = (byte) b;
+        }
+
+        void writeBit(int bit) {
+            if (backTrack) {
+                pending[size - 1] |= bit;
+                backTrack = false;
+                return;
+            }
+            if (bitsMask == 0) {
+                ensure();
+                bitsIndex = size++;
+                pending[bitsIndex] = 0;
+                bitsMask = 128;
+            }
+            if (bit != 0) {
+                pending[bitsIndex] |= bitsMask;
+            }
+            bitsMask >>= 1;
+        }
+
+        void backTrack() {
+            backTrack = true;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(pending, size);
+        }
+
+        private void ensure() {
+            if (size == pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(64, pending.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.baktra.dtblib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of monolithic binary file conversion. Segments do not overlap,
+ * so the parameters are limited by the 64 KB address space
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"1", "16", "128"})
+    public int segmentCount;
+
+    @Param({"64", "256"})
+    public int segmentSize;
+
+    private DOS2Binary analyzed;
+    private File outFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int[] fileData = BenchmarkData.toIntArray(BenchmarkData.createBinary(segmentCount, segmentSize, 0x1000, segmentSize + 16));
+        analyzed = new DOS2Binary("bench");
+        analyzed.analyzeFromData(fileData);
+        outFile = File.createTempFile("dtblib-bench", ".xex");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        outFile.delete();
+    }
+
+    @Benchmark
+    public void createMonolithicBinary() throws Exception {
+        analyzed.createMonolithicBinary(outFile.getPath(), "1536", true);
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.baktra.dtblib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of hybrid compressed segment processing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecompressionBenchmark {
+
+    /**
+     * Decompressed size of the segment
+     */
+    @Param({"1024", "16384", "49152"})
+    public int segmentSize;
+
+    /**
+     * Length of matches, literal runs are 256 bytes long
+     */
+    @Param({"8", "256"})
+    public int matchLength;
+
+    private ByteBuffer lz4Data;
+    private ByteBuffer zx0Data;
+    private ByteBuffer aplibData;
+    private HybridDecompression decompression;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        lz4Data = ByteBuffer.wrap(BenchmarkData.createLZ4Stream(segmentSize, 256, matchLength)).asReadOnlyBuffer();
+        zx0Data = ByteBuffer.wrap(BenchmarkData.createZX0Stream(segmentSize, 256, matchLength)).asReadOnlyBuffer();
+        aplibData = ByteBuffer.wrap(BenchmarkData.createAPlibStream(segmentSize, 256, matchLength)).asReadOnlyBuffer();
+        decompression = new HybridDecompression();
+    }
+
+    @Benchmark
+    public HybridDecompression.ResultCrate processLZ4() throws Exception {
+        return decompression.processLZ4(lz4Data, 0, 0x1000, 0, "bench");
+    }
+
+    @Benchmark
+    public HybridDecompression.ResultCrate processZX0() throws Exception {
+        return decompression.processZX0(zx0Data, 0, 0x1000, 0, "bench");
+    }
+
+    @Benchmark
+    public HybridDecompression.ResultCrate processAPlib() throws Exception {
+        return decompression.processAPlib(aplibData, 0, 0x1000, 0, "bench");
+    }
+
+}
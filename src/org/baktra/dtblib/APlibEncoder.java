@@ -0,0 +1,335 @@
+package org.baktra.dtblib;
+
+import java.util.Arrays;
+
+/**
+ * aPLib compressor producing streams accepted by
+ * HybridDecompression.decompressAPlib(). The parse is chosen by a forward
+ * dynamic programming over positions. Each position keeps the cheapest way
+ * of reaching it after a literal and after a match, because the encoding of
+ * the following match depends on it. Match candidates are searched in
+ * parallel before the parse.
+ * <p>
+ * The first byte is stored verbatim. Codes are 0 and byte (literal), 111 and
+ * 4 bits (byte copied from offset 1-15 or zero byte), 110 and byte (2 or 3
+ * bytes from offset 1-127, zero byte ends the stream) and 10 and gamma (match
+ * with the last offset after a literal, or match with a new offset).
+ * <p>
+ * An instance is not thread-safe, but can be reused.
+ */
+final class APlibEncoder {
+
+    private static final int MAX_OFFSET = 65_535;
+
+    private static final int KIND_LITERAL = 0;
+    private static final int KIND_SINGLE = 1;
+    private static final int KIND_SHORT = 2;
+    private static final int KIND_REP = 3;
+    private static final int KIND_MATCH = 4;
+
+    /**
+     * Matches at least this long are taken without evaluating the positions
+     * they cover
+     */
+    private final int niceLength;
+
+    /**
+     * Match candidates
+     */
+    private final MatchFinder finder;
+
+    /*Arrivals, two per position - after a literal and after a match*/
+    private int[] aCost = new int[0];
+    private int[] aRep = new int[0];
+    private int[] aFrom = new int[0];
+    private int[] aOffset = new int[0];
+    private byte[] aKind = new byte[0];
+
+    /*Bit writer*/
+    private byte[] out;
+    private int outPos;
+    private int tagPos;
+    private int tagLeft;
+
+    /**
+     * Create new compressor
+     *
+     * @param maxChain Maximum number of match candidates examined for one
+     * position
+     * @param niceLength Matches at least this long are taken at once
+     */
+    APlibEncoder(int maxChain, int niceLength) {
+        this.niceLength = niceLength;
+        this.finder = new MatchFinder(MAX_OFFSET, maxChain, niceLength);
+    }
+
+    /**
+     * Compress data
+     *
+     * @param src Source array
+     * @param off Offset of the first byte
+     * @param len Number of bytes, at least 1
+     * @return aPLib stream
+     */
+    byte[] compress(byte[] src, int off, int len) {
+
+        byte[] data = (off == 0 && src.length == len) ? src : Arrays.copyOfRange(src, off, off + len);
+
+        finder.find(data, len, Long.MAX_VALUE, 0);
+        parse(data, len);
+        return emit(data, len);
+    }
+
+    /**
+     * Find the cheapest parse
+     */
+    private void parse(byte[] data, int len) {
+
+        int slots = (len + 1) * 2;
+        if (aCost.length < slots) {
+            aCost = new int[slots];
+            aRep = new int[slots];
+            aFrom = new int[slots];
+            aOffset = new int[slots];
+            aKind = new byte[slots];
+        }
+        Arrays.fill(aCost, 0, slots, Integer.MAX_VALUE);
+
+        /*First byte is stored verbatim, there is no last offset yet*/
+        aCost[2] = 8;
+        aRep[2] = 0;
+
+        int skipUntil = 0;
+
+        for (int i = 1; i < len; i++) {
+
+            /*Positions covered by a long match are not expanded*/
+            if (i < skipUntil) {
+                continue;
+            }
+
+            for (int lwm = 0; lwm < 2; lwm++) {
+
+                int a = i * 2 + lwm;
+                int cost = aCost[a];
+                if (cost == Integer.MAX_VALUE) {
+                    continue;
+                }
+                int rep = aRep[a];
+
+                /*Literal*/
+                add(i + 1, 0, cost + 9, rep, a, 0, KIND_LITERAL);
+
+                /*Single byte from a near offset or zero byte*/
+                int b = data[i];
+                if (b == 0) {
+                    add(i + 1, 0, cost + 7, rep, a, 0, KIND_SINGLE);
+                }
+                else {
+                    for (int o = 1; o <= 15 && o <= i; o++) {
+                        if (data[i - o] == b) {
+                            add(i + 1, 0, cost + 7, rep, a, o, KIND_SINGLE);
+                            break;
+                        }
+                    }
+                }
+
+                /*Match with the last offset, only after a literal*/
+                if (lwm == 0 && rep > 0 && rep <= i) {
+                    int cap = Math.min(niceLength, len - i);
+                    int l = 0;
+                    while (l < cap && data[i + l] == data[i + l - rep]) {
+                        l++;
+                    }
+                    if (l == niceLength) {
+                        l = MatchFinder.extend(data, len, i, rep, l);
+                        add(i + l, 1, cost + 4 + gammaBits(l), rep, a, rep, KIND_REP);
+                        skipUntil = Math.max(skipUntil, i + l);
+                    }
+                    else {
+                        for (int k = 2; k <= l; k++) {
+                            add(i + k, 1, cost + 4 + gammaBits(k), rep, a, rep, KIND_REP);
+                        }
+                    }
+                }
+
+                /*Matches with a new offset*/
+                int ccount = finder.getCount(i);
+                int shorter = 1;
+                for (int c = 0; c < ccount; c++) {
+                    int offset = finder.getOffset(i, c);
+                    int l = finder.getLength(i, c);
+                    int adjust = getLengthAdjustment(offset);
+                    int offsetCost = cost + 2 + gammaBits((offset >>> 8) + ((lwm == 0) ? 3 : 2)) + 8;
+
+                    if (l == niceLength) {
+                        l = MatchFinder.extend(data, len, i, offset, l);
+                        add(i + l, 1, offsetCost + gammaBits(l - adjust), offset, a, offset, KIND_MATCH);
+                        skipUntil = Math.max(skipUntil, i + l);
+                    }
+                    else {
+                        /*Shorter lengths are cheaper with the nearer offsets*/
+                        for (int k = shorter + 1; k <= l; k++) {
+                            if (offset < 128 && k <= 3) {
+                                add(i + k, 1, cost + 11, offset, a, offset, KIND_SHORT);
+                            }
+                            else if (k - adjust >= 2) {
+                                add(i + k, 1, offsetCost + gammaBits(k - adjust), offset, a, offset, KIND_MATCH);
+                            }
+                        }
+                    }
+                    shorter = l;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get number of bytes the decompressor adds to the encoded match length
+     */
+    private static int getLengthAdjustment(int offset) {
+        int adjust = 0;
+        if (offset >= 32_000) {
+            adjust++;
+        }
+        if (offset >= 1_280) {
+            adjust++;
+        }
+        if (offset < 128) {
+            adjust += 2;
+        }
+        return adjust;
+    }
+
+    /**
+     * Add a way of reaching a position, keep the cheapest one
+     */
+    private void add(int pos, int lwm, int cost, int rep, int from, int offset, int kind) {
+        int a = pos * 2 + lwm;
+        if (cost < aCost[a]) {
+            aCost[a] = cost;
+            aRep[a] = rep;
+            aFrom[a] = from;
+            aOffset[a] = offset;
+            aKind[a] = (byte) kind;
+        }
+    }
+
+    /**
+     * Write the stream for the cheapest parse
+     */
+    private byte[] emit(byte[] data, int len) {
+
+        /*Collect the arrivals from the end*/
+        int last = (aCost[len * 2] <= aCost[len * 2 + 1]) ? len * 2 : len * 2 + 1;
+        int tokens = 0;
+        int[] path = new int[16];
+        for (int a = last; a > 3; a = aFrom[a]) {
+            if (tokens == path.length) {
+                path = Arrays.copyOf(path, tokens * 2);
+            }
+            path[tokens++] = a;
+        }
+
+        out = new byte[(aCost[last] + 11) / 8 + 16];
+        outPos = 0;
+        tagLeft = 0;
+
+        /*First byte verbatim*/
+        putByte(data[0]);
+
+        for (int t = tokens - 1; t >= 0; t--) {
+
+            int a = path[t];
+            int from = aFrom[a];
+            int pos = from / 2;
+            int length = a / 2 - pos;
+            int offset = aOffset[a];
+
+            switch (aKind[a]) {
+                case KIND_LITERAL: {
+                    putBit(0);
+                    putByte(data[pos]);
+                    break;
+                }
+                case KIND_SINGLE: {
+                    putBit(1);
+                    putBit(1);
+                    putBit(1);
+                    for (int i = 3; i >= 0; i--) {
+                        putBit((offset >>> i) & 1);
+                    }
+                    break;
+                }
+                case KIND_SHORT: {
+                    putBit(1);
+                    putBit(1);
+                    putBit(0);
+                    putByte((byte) ((offset << 1) | (length - 2)));
+                    break;
+                }
+                case KIND_REP: {
+                    putBit(1);
+                    putBit(0);
+                    putGamma(2);
+                    putGamma(length);
+                    break;
+                }
+                default: {
+                    putBit(1);
+                    putBit(0);
+                    putGamma((offset >>> 8) + ((from % 2 == 0) ? 3 : 2));
+                    putByte((byte) offset);
+                    putGamma(length - getLengthAdjustment(offset));
+                    break;
+                }
+            }
+        }
+
+        /*End of stream*/
+        putBit(1);
+        putBit(1);
+        putBit(0);
+        putByte((byte) 0);
+
+        byte[] result = Arrays.copyOf(out, outPos);
+        out = null;
+        return result;
+    }
+
+    private void putByte(byte b) {
+        out[outPos++] = b;
+    }
+
+    private void putBit(int bit) {
+        if (tagLeft == 0) {
+            tagPos = outPos;
+            out[outPos++] = 0;
+            tagLeft = 8;
+        }
+        tagLeft--;
+        if (bit != 0) {
+            out[tagPos] |= 1 << tagLeft;
+        }
+    }
+
+    /**
+     * Put gamma2 code, value at least 2
+     */
+    private void putGamma(int value) {
+        int i = Integer.highestOneBit(value) >>> 1;
+        while (i != 0) {
+            putBit((value & i) != 0 ? 1 : 0);
+            i >>>= 1;
+            putBit(i != 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Get number of bits of gamma2 code
+     */
+    private static int gammaBits(int value) {
+        return 2 * (31 - Integer.numberOfLeadingZeros(value));
+    }
+
+}
@@ -0,0 +1,286 @@
+package org.baktra.dtblib;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.baktra.dtblib.DOS2Binary.CompressionHandling;
+
+/**
+ * Cache of analyzed binary files. Files are identified by absolute path,
+ * size and time of last modification, so a changed file is analyzed again.
+ * When several threads ask for the same file at once, the file is analyzed
+ * only once and all threads receive the same result. Total size of the
+ * retained data is bounded, the least recently used files are evicted first.
+ * <p>
+ * The returned binary files are read-only, so they can be shared by threads.
+ * Failed analyses are not cached.
+ */
+public class AnalysisCache {
+
+    /**
+     * Default limit of retained bytes
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1_024 * 1_024;
+
+    /**
+     * Maximum total size of retained data
+     */
+    private final long maxRetainedBytes;
+
+    /**
+     * Compressed segment handling
+     */
+    private final CompressionHandling cprsHandling;
+
+    /**
+     * Results, both completed and being computed
+     */
+    private final ConcurrentHashMap<Key, CompletableFuture<DOS2Binary>> results = new ConcurrentHashMap<>();
+
+    /**
+     * Sizes of the completed results in order of use. Guarded by itself
+     */
+    private final LinkedHashMap<Key, Long> usage = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the completed results. Guarded by usage
+     */
+    private long retainedBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Create new cache with default limit of retained bytes
+     */
+    public AnalysisCache() {
+        this(DEFAULT_MAX_RETAINED_BYTES, CompressionHandling.REPORT_NOT_SUPPORTED);
+    }
+
+    /**
+     * Create new cache
+     *
+     * @param maxRetainedBytes Maximum total size of retained data
+     * @param cprsHandling Indicates how to handle compressed segments
+     */
+    public AnalysisCache(long maxRetainedBytes, CompressionHandling cprsHandling) {
+        if (maxRetainedBytes < 1) {
+            throw new IllegalArgumentException("Maximum retained bytes must be at least 1");
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.cprsHandling = cprsHandling;
+    }
+
+    /**
+     * Get analyzed binary file. The file is analyzed when it is not in the
+     * cache or when it changed since it was analyzed
+     *
+     * @param filename File name
+     * @return Read-only analyzed binary file
+     * @throws IOException
+     * @throws DOS2BinaryException
+     * @throws InterruptedException When interrupted while waiting for
+     * analysis done by another thread
+     */
+    public DOS2Binary get(String filename) throws IOException, DOS2BinaryException, InterruptedException {
+
+        Path path = Paths.get(filename).toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Key key = new Key(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+
+        CompletableFuture<DOS2Binary> future = results.get(key);
+        if (future == null) {
+            CompletableFuture<DOS2Binary> newFuture = new CompletableFuture<>();
+            future = results.putIfAbsent(key, newFuture);
+
+            /*This thread analyzes the file*/
+            if (future == null) {
+                missCount.incrementAndGet();
+                return load(key, filename, newFuture);
+            }
+        }
+
+        hitCount.incrementAndGet();
+        try {
+            DOS2Binary binary = future.get();
+            touch(key);
+            return binary;
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof DOS2BinaryException) {
+                throw (DOS2BinaryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Internal error: Analysis failed unexpectedly", cause);
+        }
+    }
+
+    private DOS2Binary load(Key key, String filename, CompletableFuture<DOS2Binary> future) throws IOException, DOS2BinaryException {
+
+        DOS2Binary binary = new DOS2Binary(filename, cprsHandling);
+        try {
+            binary.analyzeFromFile();
+            binary.setReadOnly();
+        }
+        catch (IOException | DOS2BinaryException | RuntimeException | Error e) {
+            results.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        future.complete(binary);
+        retain(key, future, getRetainedSize(binary));
+        return binary;
+    }
+
+    /**
+     * Get number of bytes held by an analyzed binary file. Segments are views
+     * of the file data, decompressed data are held separately
+     */
+    private static long getRetainedSize(DOS2Binary binary) {
+        return Math.max(binary.getFileLength(), 1) + binary.getProfile().getDecompressedBytes();
+    }
+
+    private void retain(Key key, CompletableFuture<DOS2Binary> future, long size) {
+
+        synchronized (usage) {
+
+            /*Result larger than the limit is handed over, but not kept*/
+            if (size > maxRetainedBytes) {
+                results.remove(key, future);
+                evictionCount.incrementAndGet();
+                return;
+            }
+
+            usage.put(key, size);
+            retainedBytes += size;
+
+            /*Evict the least recently used results*/
+            Iterator<Map.Entry<Key, Long>> it = usage.entrySet().iterator();
+            while (retainedBytes > maxRetainedBytes && it.hasNext()) {
+                Map.Entry<Key, Long> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                it.remove();
+                retainedBytes -= eldest.getValue();
+                results.remove(eldest.getKey());
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void touch(Key key) {
+        synchronized (usage) {
+            usage.get(key);
+        }
+    }
+
+    /**
+     * Remove all results. Analyses in progress are not affected
+     */
+    public void clear() {
+        synchronized (usage) {
+            for (Key key : usage.keySet()) {
+                results.remove(key);
+            }
+            usage.clear();
+            retainedBytes = 0;
+        }
+    }
+
+    /**
+     *
+     * @return Number of requests served from the cache or by waiting for
+     * analysis started by another request
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     *
+     * @return Number of requests that analyzed the file
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     *
+     * @return Number of results removed to keep the limit of retained bytes
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     *
+     * @return Total size of the retained data
+     */
+    public long getRetainedBytes() {
+        synchronized (usage) {
+            return retainedBytes;
+        }
+    }
+
+    /**
+     *
+     * @return Number of retained binary files
+     */
+    public int getEntryCount() {
+        synchronized (usage) {
+            return usage.size();
+        }
+    }
+
+    /**
+     * Identification of a file version
+     */
+    private static final class Key {
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        Key(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return size == k.size && lastModified == k.lastModified && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + Long.hashCode(size)) * 31 + Long.hashCode(lastModified);
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+package org.baktra.dtblib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import org.baktra.dtblib.DOS2Binary.CompressionHandling;
+
+/**
+ * Asynchronous variants of the file operations. Files are read and written
+ * through AsynchronousFileChannel, so the calling thread and the executor
+ * for analysis and conversion never wait for the storage. On most platforms,
+ * Linux and other Unix systems included, the channel still performs blocking
+ * reads and writes, only on a thread of its own pool. Slow storage such as
+ * network file systems blocks those threads. To control their number, pass
+ * an I/O executor, otherwise the default pool of the channel is used.
+ * Analysis and conversion run on an executor once the data are available.
+ * <p>
+ * Cancelling a returned future stops the work: pending reads and writes are
+ * aborted by closing the channel, the remaining steps are not started and
+ * the temporary output file is deleted. Checked exceptions complete the
+ * future exceptionally with the same exception type as the blocking
+ * variants throw.
+ */
+public class AsyncBinaryIO {
+
+    /**
+     * Executor for analysis and conversion
+     */
+    private final Executor executor;
+
+    /**
+     * Executor for blocking reads and writes of the channels, null for the
+     * default pool
+     */
+    private final ExecutorService ioExecutor;
+
+    /**
+     * Create new instance that analyzes and converts in the common fork/join
+     * pool
+     */
+    public AsyncBinaryIO() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create new instance
+     *
+     * @param executor Executor for analysis and conversion
+     */
+    public AsyncBinaryIO(Executor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Create new instance with own threads for the file operations. The
+     * I/O executor is not shut down by this instance
+     *
+     * @param executor Executor for analysis and conversion
+     * @param ioExecutor Executor that performs the reads and writes of the
+     * channels, typically a fixed thread pool. Null for the default pool of
+     * the channels
+     */
+    public AsyncBinaryIO(Executor executor, ExecutorService ioExecutor) {
+        if (executor == null) {
+            throw new NullPointerException("Executor must not be null");
+        }
+        this.executor = executor;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Read and analyze binary file. Same as DOS2Binary.analyzeFromFile()
+     *
+     * @param filename File name
+     * @param cprsHandling Indicates how to handle compressed segments
+     * @return Future completed with the analyzed binary file, or
+     * exceptionally with IOException or DOS2BinaryException
+     */
+    public CompletableFuture<DOS2Binary> analyzeFromFile(String filename, CompressionHandling cprsHandling) {
+
+        CompletableFuture<DOS2Binary> result = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> read = readFile(filename);
+        cancelWith(result, read);
+
+        read.whenComplete((data, t) -> {
+            if (t != null) {
+                result.completeExceptionally(unwrap(t));
+                return;
+            }
+            run(result, () -> {
+                DOS2Binary binary = new DOS2Binary(filename, cprsHandling);
+                binary.analyzeFromData(data, true);
+                result.complete(binary);
+            });
+        });
+
+        return result;
+    }
+
+    /**
+     * Create and write monolithic binary file. Same as
+     * DOS2Binary.createMonolithicBinary(). The binary file must not be
+     * modified until the future completes
+     *
+     * @param binary Analyzed binary file
+     * @param outname Output file
+     * @param extraAdress Address of the jump segment emulation code
+     * @param extra Generate jump segment emulation code
+     * @return Future completed when the file is written, or exceptionally
+     * with DOS2BinaryProcessingException or IOException
+     */
+    public CompletableFuture<Void> createMonolithicBinary(DOS2Binary binary, String outname, String extraAdress, boolean extra) {
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        run(result, () -> {
+            byte[] image = binary.buildMonolithicBinary(extraAdress, extra);
+            CompletableFuture<Void> write = writeFile(outname, ByteBuffer.wrap(image));
+            cancelWith(result, write);
+            write.whenComplete((v, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(unwrap(t));
+                }
+                else {
+                    result.complete(null);
+                }
+            });
+        });
+
+        return result;
+    }
+
+    /**
+     * Read whole file
+     *
+     * @param filename File name
+     * @return Future completed with buffer holding the file, position 0
+     */
+    CompletableFuture<ByteBuffer> readFile(String filename) {
+
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        AsynchronousFileChannel channel;
+        ByteBuffer buffer;
+
+        try {
+            channel = open(Paths.get(filename), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > DOS2Binary.MAX_FILE_LENGTH) {
+                channel.close();
+                result.completeExceptionally(new DOS2BinaryException(filename, "Binary file is too long. File size exceeds 16 MB.", 0));
+                return result;
+            }
+            buffer = ByteBuffer.allocate((int) size);
+        }
+        catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        /*Closing the channel aborts a pending read when cancelled*/
+        result.whenComplete((b, t) -> closeQuietly(channel));
+
+        CompletionHandler<Integer, ByteBuffer> handler = new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer count, ByteBuffer b) {
+                if (result.isDone()) {
+                    return;
+                }
+                if (count < 0 || !b.hasRemaining()) {
+                    b.flip();
+                    result.complete(b.asReadOnlyBuffer());
+                    return;
+                }
+                channel.read(b, b.position(), b, this);
+            }
+
+            @Override
+            public void failed(Throwable t, ByteBuffer b) {
+                result.completeExceptionally(t);
+            }
+        };
+
+        if (buffer.hasRemaining()) {
+            channel.read(buffer, 0, buffer, handler);
+        }
+        else {
+            result.complete(buffer);
+        }
+        return result;
+    }
+
+    /**
+     * Write whole file. The data are written to a temporary file in the same
+     * directory first, then the temporary file is renamed, atomically when
+     * the file system supports it
+     *
+     * @param filename File name
+     * @param data Data to be written, from position to limit
+     * @return Future completed when the file is written
+     */
+    CompletableFuture<Void> writeFile(String filename, ByteBuffer data) {
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path candidate;
+        AsynchronousFileChannel opened;
+
+        /*Create temporary file with a unique name*/
+        try {
+            while (true) {
+                candidate = DTBUtils.getTempPath(target);
+                try {
+                    opened = open(candidate, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    break;
+                }
+                catch (FileAlreadyExistsException e) {
+                    /*Try another name*/
+                }
+            }
+        }
+        catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        Path tempFile = candidate;
+        AsynchronousFileChannel channel = opened;
+
+        /*Closing the channel aborts a pending write when cancelled*/
+        result.whenComplete((v, t) -> {
+            closeQuietly(channel);
+            try {
+                Files.deleteIfExists(tempFile);
+            }
+            catch (IOException e) {
+                /*Nothing more can be done*/
+            }
+        });
+
+        CompletionHandler<Integer, ByteBuffer> handler = new CompletionHandler<Integer, ByteBuffer>() {
+
+            private long filePosition;
+
+            @Override
+            public void completed(Integer count, ByteBuffer b) {
+                if (result.isDone()) {
+                    return;
+                }
+                filePosition += count;
+                if (b.hasRemaining()) {
+                    channel.write(b, filePosition, b, this);
+                    return;
+                }
+                try {
+                    channel.close();
+                    DTBUtils.moveToTarget(tempFile, target);
+                    result.complete(null);
+                }
+                catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t, ByteBuffer b) {
+                result.completeExceptionally(t);
+            }
+        };
+
+        handler.completed(0, data.duplicate());
+        return result;
+    }
+
+    /**
+     * Open channel that uses the I/O executor
+     */
+    private AsynchronousFileChannel open(Path path, StandardOpenOption... options) throws IOException {
+        if (ioExecutor == null) {
+            return AsynchronousFileChannel.open(path, options);
+        }
+        return AsynchronousFileChannel.open(path, new HashSet<>(Arrays.asList(options)), ioExecutor);
+    }
+
+    /**
+     * Step of an operation that may throw checked exceptions
+     */
+    private interface Step {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Run step on the executor unless the operation is already completed or
+     * cancelled
+     */
+    private void run(CompletableFuture<?> result, Step step) {
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    step.run();
+                }
+                catch (Exception | Error e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Cancel the inner operation when the outer operation is cancelled
+     */
+    private static void cancelWith(CompletableFuture<?> outer, CompletableFuture<?> inner) {
+        outer.whenComplete((v, t) -> {
+            if (t instanceof CancellationException) {
+                inner.cancel(false);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            return t.getCause();
+        }
+        return t;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            /*Nothing more can be done*/
+        }
+    }
+
+}
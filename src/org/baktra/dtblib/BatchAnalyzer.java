@@ -0,0 +1,250 @@
+package org.baktra.dtblib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.baktra.dtblib.DOS2Binary.CompressionHandling;
+
+/**
+ * Parallel analysis of many binary files. Files are analyzed on a
+ * work-stealing pool. Total size of the files that are being analyzed or
+ * whose results were not yet handed over is bounded. Results are handed over
+ * to a visitor in the calling thread, in order of completion.
+ */
+public class BatchAnalyzer {
+
+    /**
+     * Default limit of bytes in flight
+     */
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 256L * 1_024 * 1_024;
+
+    /**
+     * Number of worker threads
+     */
+    private final int parallelism;
+
+    /**
+     * Maximum total size of files in flight
+     */
+    private final long maxBytesInFlight;
+
+    /**
+     * Maximum number of files in flight
+     */
+    private final int maxFilesInFlight;
+
+    /**
+     * Compressed segment handling
+     */
+    private final CompressionHandling cprsHandling;
+
+    /**
+     * Create new batch analyzer that uses all processors and default limit of
+     * bytes in flight
+     */
+    public BatchAnalyzer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BYTES_IN_FLIGHT, CompressionHandling.REPORT_NOT_SUPPORTED);
+    }
+
+    /**
+     * Create new batch analyzer
+     *
+     * @param parallelism Number of worker threads
+     * @param maxBytesInFlight Maximum total size of files in flight
+     * @param cprsHandling Indicates how to handle compressed segments
+     */
+    public BatchAnalyzer(int parallelism, long maxBytesInFlight, CompressionHandling cprsHandling) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        if (maxBytesInFlight < 1) {
+            throw new IllegalArgumentException("Maximum bytes in flight must be at least 1");
+        }
+        this.parallelism = parallelism;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.maxFilesInFlight = parallelism * 4;
+        this.cprsHandling = cprsHandling;
+    }
+
+    /**
+     * Analyze files. Returns when all files were analyzed and all results
+     * handed over
+     *
+     * @param filenames File names
+     * @param visitor Visitor that receives the results
+     * @throws InterruptedException
+     */
+    public void analyze(Iterable<String> filenames, BatchResultVisitor visitor) throws InterruptedException {
+        analyze(filenames.iterator(), visitor);
+    }
+
+    /**
+     * Analyze all regular files in a directory and its subdirectories.
+     * Returns when all files were analyzed and all results handed over
+     *
+     * @param directory Directory
+     * @param visitor Visitor that receives the results
+     * @throws IOException When the directory cannot be walked
+     * @throws InterruptedException
+     */
+    public void analyzeDirectory(String directory, BatchResultVisitor visitor) throws IOException, InterruptedException {
+
+        try (Stream<Path> paths = Files.walk(Paths.get(directory))) {
+            Iterator<String> it = paths.filter(Files::isRegularFile).map(Path::toString).iterator();
+            analyze(it, visitor);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void analyze(Iterator<String> filenames, BatchResultVisitor visitor) throws InterruptedException {
+
+        ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+        CompletionService<BatchResultCrate> completion = new ExecutorCompletionService<>(pool);
+
+        long bytesInFlight = 0;
+        int filesInFlight = 0;
+
+        try {
+            while (filenames.hasNext()) {
+
+                String filename = filenames.next();
+                long cost = Math.min(Math.max(new File(filename).length(), 1), maxBytesInFlight);
+
+                /*Wait for results until the file fits to the limits*/
+                while (filesInFlight > 0 && (bytesInFlight + cost > maxBytesInFlight || filesInFlight >= maxFilesInFlight)) {
+                    bytesInFlight -= handOver(completion.take(), visitor);
+                    filesInFlight--;
+                }
+
+                completion.submit(new AnalysisTask(filename, cost));
+                bytesInFlight += cost;
+                filesInFlight++;
+
+                /*Hand over results that are already available*/
+                Future<BatchResultCrate> f;
+                while ((f = completion.poll()) != null) {
+                    bytesInFlight -= handOver(f, visitor);
+                    filesInFlight--;
+                }
+            }
+
+            /*Hand over the remaining results*/
+            while (filesInFlight > 0) {
+                bytesInFlight -= handOver(completion.take(), visitor);
+                filesInFlight--;
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long handOver(Future<BatchResultCrate> f, BatchResultVisitor visitor) throws InterruptedException {
+
+        BatchResultCrate result;
+        try {
+            result = f.get();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Internal error: Analysis failed unexpectedly", e.getCause());
+        }
+
+        visitor.visit(result);
+        return result.cost;
+    }
+
+    /**
+     * Analysis of a single file
+     */
+    private class AnalysisTask implements Callable<BatchResultCrate> {
+
+        private final String filename;
+        private final long cost;
+
+        AnalysisTask(String filename, long cost) {
+            this.filename = filename;
+            this.cost = cost;
+        }
+
+        @Override
+        public BatchResultCrate call() {
+            DOS2Binary dtb = new DOS2Binary(filename, cprsHandling);
+            try {
+                dtb.analyzeFromFile();
+                return new BatchResultCrate(filename, dtb, null, null, cost);
+            }
+            catch (DOS2BinaryException e) {
+                return new BatchResultCrate(filename, null, e, null, cost);
+            }
+            catch (IOException e) {
+                return new BatchResultCrate(filename, null, null, e, cost);
+            }
+        }
+    }
+
+    /**
+     * Visitor that receives results of the batch analysis. The visitor is
+     * called in the thread that started the analysis
+     */
+    public interface BatchResultVisitor {
+
+        /**
+         * Receive result of analysis of one file
+         *
+         * @param result Result
+         */
+        public void visit(BatchResultCrate result);
+    }
+
+    /**
+     * Result of analysis of one file. Exactly one of binary,
+     * binaryException and ioException is not null
+     */
+    public static class BatchResultCrate {
+
+        /**
+         * File name
+         */
+        public final String filename;
+        /**
+         * Analyzed binary file
+         */
+        public final DOS2Binary binary;
+        /**
+         * Exception when the file is not a valid binary file
+         */
+        public final DOS2BinaryException binaryException;
+        /**
+         * Exception when the file cannot be read
+         */
+        public final IOException ioException;
+
+        /**
+         * Bytes accounted for the file
+         */
+        final long cost;
+
+        BatchResultCrate(String filename, DOS2Binary binary, DOS2BinaryException binaryException, IOException ioException, long cost) {
+            this.filename = filename;
+            this.binary = binary;
+            this.binaryException = binaryException;
+            this.ioException = ioException;
+            this.cost = cost;
+        }
+    }
+
+}
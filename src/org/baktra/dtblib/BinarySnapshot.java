@@ -0,0 +1,329 @@
+package org.baktra.dtblib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable view of an analyzed DOS 2 Binary File. Segments are immutable
+ * and the list of segments cannot be changed, so one snapshot can be read by
+ * any number of threads without synchronization. The memory map and the file
+ * profile are created when the snapshot is created.
+ * <p>
+ * Transformations return new snapshots. Segments that are not changed by a
+ * transformation are shared with the original snapshot. Segments are placed
+ * as in a file with one $FFFF header, segments that move share their data
+ * with the original segments.
+ */
+public final class BinarySnapshot implements Iterable<Segment> {
+
+    /**
+     * File name
+     */
+    private final String filename;
+
+    /**
+     * Segments. Never modified after construction
+     */
+    private final Segment[] segments;
+
+    /**
+     * Unmodifiable list view of the segments
+     */
+    private final List<Segment> segmentList;
+
+    /**
+     * Summary of the segments
+     */
+    private final FileProfile profile;
+
+    /**
+     * Memory occupied by the segments
+     */
+    private final MemoryRangeSet memoryMap;
+
+    /**
+     * Create new snapshot. The array is not copied, segments are relocated
+     * in place so that their file offsets follow the order of the array
+     */
+    private BinarySnapshot(String filename, Segment[] segments) {
+        this.filename = filename;
+        this.segments = segments;
+        this.segmentList = new SegmentList(segments);
+
+        profile = new FileProfile();
+        ArrayList<MemoryRange> ranges = new ArrayList<>(segments.length);
+        /*The first segment follows the $FFFF header*/
+        int rba = 2;
+        for (int i = 0; i < segments.length; i++) {
+            Segment s = segments[i];
+            if (s == null) {
+                throw new NullPointerException("Segment " + i + " is null");
+            }
+            s = s.relocate(rba);
+            segments[i] = s;
+            rba += s.getFullLength();
+            profile.add(s);
+            if (s.getLastLoadedAddress() >= s.getFirstAddress()) {
+                ranges.add(new MemoryRange(s.getFirstAddress(), s.getLastLoadedAddress()));
+            }
+        }
+        memoryMap = MemoryRangeSet.of(ranges);
+    }
+
+    /**
+     * Create snapshot of segments
+     *
+     * @param filename File name
+     * @param segments Segments, in order of the file
+     * @return Snapshot
+     */
+    public static BinarySnapshot of(String filename, Collection<Segment> segments) {
+        return new BinarySnapshot(filename, segments.toArray(new Segment[segments.size()]));
+    }
+
+    /**
+     *
+     * @return File name
+     */
+    public String getFileName() {
+        return filename;
+    }
+
+    /**
+     *
+     * @return Number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Get segment
+     *
+     * @param index Index of the segment
+     * @return Segment
+     */
+    public Segment getSegment(int index) {
+        return segments[index];
+    }
+
+    /**
+     * Get segments
+     *
+     * @return Unmodifiable list of the segments
+     */
+    public List<Segment> getSegments() {
+        return segmentList;
+    }
+
+    @Override
+    public Iterator<Segment> iterator() {
+        return segmentList.iterator();
+    }
+
+    /**
+     * Get summary of the segments
+     *
+     * @return File profile
+     */
+    public FileProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Get memory loaded by the segments. Compressed segments load their
+     * decompressed data, segments without data load nothing
+     *
+     * @return Set of memory ranges loaded by at least one segment
+     */
+    public MemoryRangeSet getMemoryMap() {
+        return memoryMap;
+    }
+
+    /**
+     *
+     * @return true When at least one segment contains RUN vector
+     */
+    public boolean hasRunVector() {
+        return profile.getRunVectorCount() > 0;
+    }
+
+    /**
+     *
+     * @return true When at least one segment contains INIT vector
+     */
+    public boolean hasInitVector() {
+        return profile.getInitVectorCount() > 0;
+    }
+
+    /**
+     *
+     * @return true When at least one segment is compressed
+     */
+    public boolean hasCompressedSegment() {
+        return profile.getCompressedSegmentCount() > 0;
+    }
+
+    /**
+     * Get the whole binary file as it would be written
+     *
+     * @return Array with the $FFFF header and all segments
+     */
+    public byte[] getAllBytes() {
+        return DOS2Binary.serialize(segmentList);
+    }
+
+    /**
+     * Write the whole binary file to a channel. See DOS2Binary.writeTo()
+     *
+     * @param channel Channel in blocking mode, not closed
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return DOS2Binary.write(segmentList, channel);
+    }
+
+    /**
+     * Write the whole binary file to a stream. See DOS2Binary.writeTo()
+     *
+     * @param out Stream, not closed
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        return DOS2Binary.write(segmentList, out);
+    }
+
+    /**
+     * Replace one segment
+     *
+     * @param index Index of the segment
+     * @param seg New segment
+     * @return New snapshot
+     */
+    public BinarySnapshot withSegment(int index, Segment seg) {
+        if (segments[index] == seg) {
+            return this;
+        }
+        Segment[] newSegments = segments.clone();
+        newSegments[index] = seg;
+        return new BinarySnapshot(filename, newSegments);
+    }
+
+    /**
+     * Insert segment
+     *
+     * @param index Index of the new segment, 0 to number of segments
+     * @param seg New segment
+     * @return New snapshot
+     */
+    public BinarySnapshot withSegmentInserted(int index, Segment seg) {
+        if (index < 0 || index > segments.length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + segments.length + " segments");
+        }
+        Segment[] newSegments = new Segment[segments.length + 1];
+        System.arraycopy(segments, 0, newSegments, 0, index);
+        newSegments[index] = seg;
+        System.arraycopy(segments, index, newSegments, index + 1, segments.length - index);
+        return new BinarySnapshot(filename, newSegments);
+    }
+
+    /**
+     * Append segment to the end of the file
+     *
+     * @param seg New segment
+     * @return New snapshot
+     */
+    public BinarySnapshot withSegmentAdded(Segment seg) {
+        return withSegmentInserted(segments.length, seg);
+    }
+
+    /**
+     * Remove segment
+     *
+     * @param index Index of the segment
+     * @return New snapshot
+     */
+    public BinarySnapshot withoutSegment(int index) {
+        if (index < 0 || index >= segments.length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + segments.length + " segments");
+        }
+        Segment[] newSegments = new Segment[segments.length - 1];
+        System.arraycopy(segments, 0, newSegments, 0, index);
+        System.arraycopy(segments, index + 1, newSegments, index, segments.length - index - 1);
+        return new BinarySnapshot(filename, newSegments);
+    }
+
+    /**
+     * Apply a function to each segment. When the function returns the same
+     * segment for all segments, this snapshot is returned
+     *
+     * @param function Function returning the new segment for a segment
+     * @return New snapshot
+     */
+    public BinarySnapshot map(UnaryOperator<Segment> function) {
+        Segment[] newSegments = null;
+        for (int i = 0; i < segments.length; i++) {
+            Segment s = function.apply(segments[i]);
+            if (s != segments[i] && newSegments == null) {
+                newSegments = segments.clone();
+            }
+            if (newSegments != null) {
+                newSegments[i] = s;
+            }
+        }
+        return (newSegments == null) ? this : new BinarySnapshot(filename, newSegments);
+    }
+
+    /**
+     * Append segment with RUN vector pointing to the first address of the
+     * first segment. Same as DOS2Binary.createArtificialRunVector()
+     *
+     * @return New snapshot, or this snapshot when there are no segments
+     */
+    public BinarySnapshot withArtificialRunVector() {
+
+        if (segments.length == 0) {
+            return this;
+        }
+
+        return withSegmentAdded(Segment.createRunSegment(segments[0].getFirstAddress()));
+    }
+
+    @Override
+    public String toString() {
+        return filename + " " + Arrays.toString(segments);
+    }
+
+    /**
+     * Unmodifiable list backed by the segment array
+     */
+    private static final class SegmentList extends AbstractList<Segment> {
+
+        private final Segment[] segments;
+
+        SegmentList(Segment[] segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public Segment get(int index) {
+            return segments[index];
+        }
+
+        @Override
+        public int size() {
+            return segments.length;
+        }
+    }
+
+}
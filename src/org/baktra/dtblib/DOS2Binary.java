@@ -1,22 +1,38 @@
 package org.baktra.dtblib;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import static org.baktra.dtblib.HybridDecompression.COMPRESS_APLIB;
-import static org.baktra.dtblib.HybridDecompression.COMPRESS_LZ4;
-import static org.baktra.dtblib.HybridDecompression.COMPRESS_ZX0;
+import static org.baktra.dtblib.DTBUtils.getUnsigned;
 
 /**
  * DOS 2 Binary file.
  */
 public class DOS2Binary {
 
+    /**
+     * Maximum length of a binary file
+     */
+    static final int MAX_FILE_LENGTH = 16 * 1_024 * 1_024;
+
+    /**
+     * Maximum number of buffers passed to one gathering write
+     */
+    private static final int MAX_GATHER_BUFFERS = 1_024;
+
+    /**
+     * Size of the buffer used when writing to a stream
+     */
+    private static final int STREAM_CHUNK_SIZE = 64 * 1_024;
+
     /**
      * File name
      */
@@ -30,7 +46,13 @@ public class DOS2Binary {
     /**
      * Indicates that file has been analyzed
      */
-    private boolean isAnalyzed;
+    private volatile boolean isAnalyzed;
+
+    /**
+     * Indicates that the instance can no longer be modified, so that it can
+     * be shared by threads
+     */
+    private volatile boolean readOnly;
 
     /**
      * Total length of the binary file
@@ -42,6 +64,16 @@ public class DOS2Binary {
      */
     private final CompressionHandling cprsHandling;
 
+    /**
+     * Memory occupied by the segments. Created on demand
+     */
+    private MemoryRangeSet memoryMap;
+
+    /**
+     * Summary of the segments, updated when a segment is added
+     */
+    private final FileProfile profile;
+
     /**
      * Create new instance
      *
@@ -63,6 +95,30 @@ public class DOS2Binary {
         segmentList = new ArrayList<>();
         isAnalyzed = false;
         this.cprsHandling = cprsHandling;
+        profile = new FileProfile();
+    }
+
+    /**
+     * Create new instance from segments. The instance is analyzed, no
+     * parsing takes place. Segments are placed one after another behind the
+     * $FFFF header, segments whose relative byte address does not match the
+     * new location are replaced with relocated copies that share the data
+     *
+     * @param fileSpec File name
+     * @param cprsHandling Indicates how to handle compressed segments
+     * @param segments Segments, in order of the file
+     */
+    public DOS2Binary(String fileSpec, CompressionHandling cprsHandling, List<Segment> segments) {
+        this(fileSpec, cprsHandling);
+
+        int rba = 2;
+        segmentList.ensureCapacity(segments.size());
+        for (Segment s : segments) {
+            addSegment(s.relocate(rba));
+            rba += s.getFullLength();
+        }
+        fileLength = rba;
+        isAnalyzed = true;
     }
 
     /**
@@ -83,39 +139,70 @@ public class DOS2Binary {
     }
 
     /**
+     * Read and analyze the file. Segments never refer to a memory-mapped
+     * file, so the instance can be kept while the file is replaced or
+     * truncated
      *
      * @throws IOException
      * @throws DOS2BinaryException
      */
     public void analyzeFromFile() throws IOException, DOS2BinaryException {
 
-        /*Check size. Maximum size is up to 16 MB*/
-        File f = new File(filename);
-        if (f.exists() && f.isFile()) {
-            long l = f.length();
-            if (l > 16 * 1_024 * 1_024) {
-                throw new DOS2BinaryException(filename, "Binary file is too long. File size exceeds 16 MB.", 0);
+        ByteBuffer fileData = loadFile();
+        analyze(fileData, true);
+
+        /*Segments of a memory-mapped file are copied to the heap, so they do
+        not keep the mapping alive*/
+        if (fileData.isDirect()) {
+            for (int i = 0; i < segmentList.size(); i++) {
+                segmentList.set(i, segmentList.get(i).detach());
             }
         }
+    }
+
+    /**
+     * Check structure of the binary file without creating segments. The file
+     * is walked the same way analyzeFromFile() walks it, compressed segments
+     * are decompressed to find their end. The instance is not modified
+     *
+     * @return Verdict
+     * @throws IOException
+     */
+    public ValidationResultCrate validateFromFile() throws IOException {
+        try {
+            return validate(loadFile(), true);
+        }
+        catch (DOS2BinaryException e) {
+            return new ValidationResultCrate(false, e.getOffset(), 0, e.isAlien(), e.toString(false));
+        }
+    }
 
-        QuickIntegerVector fData = new QuickIntegerVector(256);
-        int oneByte=-1;
+    /**
+     * Check structure of a binary file held in a byte buffer without
+     * creating segments. Bytes between the position and the limit of the
+     * buffer are checked. The instance is not modified
+     *
+     * @param fileData Buffer with the binary file
+     * @param headerRequired Indicates whether the $FFFF header is required
+     * @return Verdict
+     */
+    public ValidationResultCrate validateFromData(ByteBuffer fileData, boolean headerRequired) {
+        return validate(fileData.slice(), headerRequired);
+    }
 
-        try (FileInputStream fis = new FileInputStream(filename);
-                BufferedInputStream bis = new BufferedInputStream(fis, 4096)) {
+    private ByteBuffer loadFile() throws IOException, DOS2BinaryException {
 
-            /*Get all the data from the file*/
-            while ((oneByte=bis.read())!=-1) {
-                fData.add(oneByte);
+        /*Check size. Maximum size is up to 16 MB*/
+        File f = new File(filename);
+        long l = f.length();
+        if (f.exists() && f.isFile()) {
+            if (l > MAX_FILE_LENGTH) {
+                throw new DOS2BinaryException(filename, "Binary file is too long. File size exceeds 16 MB.", 0);
             }
-            
         }
 
-        /*Convert the data to array if integers*/
-        int[] fileData = fData.toArray();
-
-        analyze(fileData, true);
-
+        /*Get all the data from the file*/
+        return DTBUtils.loadFile(filename, l);
     }
 
     /**
@@ -136,7 +223,21 @@ public class DOS2Binary {
      * @throws DOS2BinaryException
      */
     public void analyzeFromData(int[] fileData, boolean headerRequired) throws IOException, DOS2BinaryException {
-        analyze(fileData, headerRequired);
+        analyze(ByteBuffer.wrap(DTBUtils.getAsByteArray(fileData)), headerRequired);
+    }
+
+    /**
+     * Analyze binary file held in a byte buffer. Bytes between the position
+     * and the limit of the buffer are analyzed. Segments are views of the
+     * buffer, so the buffer content must not be modified afterwards
+     *
+     * @param fileData Buffer with the binary file
+     * @param headerRequired Indicates whether the $FFFF header is required
+     * @throws IOException
+     * @throws DOS2BinaryException
+     */
+    public void analyzeFromData(ByteBuffer fileData, boolean headerRequired) throws IOException, DOS2BinaryException {
+        analyze(fileData.slice(), headerRequired);
     }
 
     /**
@@ -144,10 +245,40 @@ public class DOS2Binary {
      *
      * @throws IOException,DOS2BinaryException
      */
-    private void analyze(int[] fileData, boolean headerRequired) throws IOException, DOS2BinaryException {
+    private void analyze(ByteBuffer fileData, boolean headerRequired) throws IOException, DOS2BinaryException {
+        checkWritable();
+        fileLength = fileData.limit();
+        walk(fileData, headerRequired, null, true);
+        isAnalyzed = true;
+    }
+
+    private ValidationResultCrate validate(ByteBuffer fileData, boolean headerRequired) {
+
+        /*Segments read before an error are counted*/
+        int[] segmentCount = new int[1];
+        try {
+            walk(fileData, headerRequired, segmentCount, false);
+            return new ValidationResultCrate(true, -1, segmentCount[0], false, null);
+        }
+        catch (DOS2BinaryException e) {
+            return new ValidationResultCrate(false, e.getOffset(), segmentCount[0], e.isAlien(), e.toString(false));
+        }
+    }
+
+    /**
+     * Walk through the segment headers of a binary file
+     *
+     * @param fileData Binary file data
+     * @param headerRequired Indicates whether the $FFFF header is required
+     * @param segmentCount When not null, the first element counts the segments
+     * @param build When true, segments are created and added to the list
+     * @throws DOS2BinaryException
+     */
+    private void walk(ByteBuffer fileData, boolean headerRequired, int[] segmentCount, boolean build) throws DOS2BinaryException {
 
         int pos = 0;
-        fileLength = fileData.length;
+        int fileLength = fileData.limit();
+        HybridDecompression hc = null;
         int b1;
         int b2;
         int w1;
@@ -158,15 +289,15 @@ public class DOS2Binary {
         if (headerRequired == true) {
 
             if (fileLength < 2) {
-                throw new DOS2BinaryException(filename, "The binary file is too short to have a header", 0);
+                throw new DOS2BinaryException(filename, "The binary file is too short to have a header", 0, true);
             }
 
-            if (fileData[0] != 255 || fileData[1] != 255) {
-                throw new DOS2BinaryException(filename, "Binary file header not found. First two bytes do not have values of 255 $FF", 0);
+            if (getUnsigned(fileData, 0) != 255 || getUnsigned(fileData, 1) != 255) {
+                throw new DOS2BinaryException(filename, "Binary file header not found. First two bytes do not have values of 255 $FF", 0, true);
             }
             pos = 2;
         }
-        else if (fileData[0] == 255 && fileData[1] == 255) {
+        else if (fileLength >= 2 && getUnsigned(fileData, 0) == 255 && getUnsigned(fileData, 1) == 255) {
             pos = 2;
         }
         else {
@@ -181,8 +312,8 @@ public class DOS2Binary {
             try {
 
                 /*Is there another 255 255*/
-                b1 = fileData[pos];
-                b2 = fileData[pos + 1];
+                b1 = getUnsigned(fileData, pos);
+                b2 = getUnsigned(fileData, pos + 1);
 
                 /*If so, update position*/
                 if (b1 == 255 && b2 == 255) {
@@ -190,15 +321,23 @@ public class DOS2Binary {
                 }
 
                 /*Get first address and last address*/
-                w1 = fileData[pos] + 256 * fileData[pos + 1];
+                w1 = getUnsigned(fileData, pos) + 256 * getUnsigned(fileData, pos + 1);
                 pos += 2;
 
-                w2 = fileData[pos] + 256 * fileData[pos + 1];
+                w2 = getUnsigned(fileData, pos) + 256 * getUnsigned(fileData, pos + 1);
                 pos += 2;
 
                 /*Possible compressed segment*/
                 if (cprsHandling != CompressionHandling.IGNORE_COMPRESSION && w2 == 0) {
-                    pos = processCompressed(fileData, pos, w1, lastSegPos);
+                    if (hc == null) {
+                        hc = new HybridDecompression();
+                    }
+                    if (build) {
+                        pos = processCompressed(hc, fileData, pos, w1, lastSegPos);
+                    }
+                    else {
+                        pos = hc.skip(fileData, pos, w1, filename);
+                    }
                     if (cprsHandling == CompressionHandling.REPORT_NOT_SUPPORTED) {
                         throw new DOS2BinaryException(this.filename, "Compressed segments not supported by the selected function", lastSegPos);
                     }
@@ -210,39 +349,42 @@ public class DOS2Binary {
                         throw new DOS2BinaryException(filename, getNegativeSegmentSizeMessage(w1, w2), lastSegPos);
                     }
 
-                    /*Create new segment*/
-                    int[] newSegmentData = new int[w2 - w1 + 1];
-                    System.arraycopy(fileData, pos, newSegmentData, 0, newSegmentData.length);
-                    Segment s = new Segment(w1, newSegmentData, lastSegPos);
+                    int segmentLength = w2 - w1 + 1;
+                    if (build) {
+                        /*Create new segment. The segment is a view of the file data*/
+                        ByteBuffer newSegmentData = DTBUtils.getView(fileData, pos, segmentLength);
+                        Segment s = new Segment(w1, newSegmentData, lastSegPos, null, -1);
 
-                    /*Add segment to the list*/
-                    this.segmentList.add(s);
+                        /*Add segment to the list*/
+                        addSegment(s);
+                    }
+                    else if (pos + segmentLength > fileLength) {
+                        throw new DOS2BinaryException(filename, "Segment or segment header continues beyond end of binary file", pos);
+                    }
 
                     /*Advance*/
-                    pos += newSegmentData.length;
+                    pos += segmentLength;
+                }
+
+                if (segmentCount != null) {
+                    segmentCount[0]++;
                 }
 
             }
-            catch (ArrayIndexOutOfBoundsException ae) {
+            catch (IndexOutOfBoundsException ae) {
                 throw new DOS2BinaryException(filename, "Segment or segment header continues beyond end of binary file", pos);
             }
 
         }/*End of main loop*/
 
-        isAnalyzed = true;
-
     }
 
     public DOS2Binary deriveFileWithMaxSegmentSize(int maxSegmentSize) throws Exception {
 
-        Iterator<Segment> oldSegmentIterator = this.getSegmentListIterator();
-
         /*First check if there is at least one big segment*/
         boolean hasBigSegment = false;
-        while (oldSegmentIterator.hasNext()) {
-            Segment s = oldSegmentIterator.next();
-
-            if (s.getData().length > maxSegmentSize) {
+        for (Segment s : segmentList) {
+            if (s.getLength() > maxSegmentSize) {
                 hasBigSegment = true;
             }
         }
@@ -252,31 +394,25 @@ public class DOS2Binary {
             return this;
         }
 
-        /*Now we need to find all big segments and split them*/
-        oldSegmentIterator = this.getSegmentListIterator();
-
-        QuickIntegerVector is = new QuickIntegerVector();
-        is.add(255);
-        is.add(255);
-
-        while (oldSegmentIterator.hasNext()) {
-            Segment s = oldSegmentIterator.next();
-            if (s.getData().length < maxSegmentSize) {
-                is.add(s.getFullData());
-            }
-            else {
-                Segment[] splitSegments = s.splitUsingMaxSize(maxSegmentSize);
-                for (Segment ns : splitSegments) {
-                    is.add(ns.getFullData());
-                }
-            }
-        }
+        /*Split the big segments, the new file is built from the segments*/
+        return SegmentTransform.splitByMaxSize(maxSegmentSize).applyTo(this);
+    }
 
-        int[] newData = is.toArray();
-        DOS2Binary newDtb = new DOS2Binary("");
+    /**
+     *
+     * @return Compressed segment handling
+     */
+    public CompressionHandling getCompressionHandling() {
+        return cprsHandling;
+    }
 
-        newDtb.analyzeFromData(newData, true);
-        return newDtb;
+    /**
+     * Get segments
+     *
+     * @return Unmodifiable list of the segments
+     */
+    List<Segment> getSegments() {
+        return Collections.unmodifiableList(segmentList);
     }
 
     /**
@@ -299,200 +435,36 @@ public class DOS2Binary {
      * @throws NumberFormatException
      */
     public void createMonolithicBinary(String outname, String extraAdress, boolean extra) throws DOS2BinaryProcessingException, IOException, NumberFormatException {
+        getMonolithicConverter(extraAdress, extra).convertToFile(this, outname);
+    }
 
-        /*Check if there is at least one segment*/
-        if (segmentList.size() < 1) {
-            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. The input binary file has no segments.");
-        }
-
-        /*Validate the extra code address*/
-        int extraCodeAddress = -1;
-
-        if (extra == true) {
-
-            /*Try to get decimal number*/
-            try {
-                extraCodeAddress = Integer.parseInt(extraAdress);
-            }
-            catch (NumberFormatException e) {
-                extraCodeAddress = -1;
-            }
-            /*Check range*/
-            if (extraCodeAddress < 0 || extraCodeAddress > 65_535) {
-                throw new DOS2BinaryProcessingException(("Unable to create monolithic binary file. Adddress of the code that replaces INIT segments is not valid (0-65535)"));
-            }
-            /*Check if the extra code fits*/
-            if (extraCodeAddress > 65_536 - getExtraCodeForMergeLength()) {
-                throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Code that replaces INIT segments would span beyond address of 65535");
-            }
-
-        }
-
-        Segment[] segments = new Segment[segmentList.size()];
-        for (int i = 0; i < segments.length; i++) {
-            segments[i] = segmentList.get(i);
-        }
-
-        /*Main storage array. Unused bytes are marked with -1.
-        This is used to detect overlapping segments. List of intervals would
-        be nice, but this implementation is sufficient*/
-        int[] fileData = new int[65_536];
-
-        /*Reset main storage array*/
-        for (int i = 0; i < 65_536; i++) {
-            fileData[i] = -1;
-        }
-
-        /*Copy segments to the main storage array*/
-        for (Segment seg : segments) {
-            int firstAddress = seg.getFirstAddress();
-            int[] segData = seg.getData();
-            int length = segData.length;
-
-            /*For pure data segments, it is simple, we copy the data and
-            check for overlaps. This is why we do this byte by byte*/
-            if (seg.hasNoVector()) {
-                for (int k = 0; k < length; k++) {
-                    /*Check for overlap*/
-                    if (fileData[firstAddress + k] != -1) {
-                        throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Segments of the binary file overlap. Segment: " + seg.toString());
-                    }
-                    /*Copy data*/
-                    fileData[firstAddress + k] = segData[k];
-                }
-                continue;
-            }
-
-            /*Segment with jump vectors*/
-            /*Get portions that are not jump vectors*/
-            Segment.SegmentPortionCrate[] portions = seg.getNonVectorPortions();
-
-            for (Segment.SegmentPortionCrate portion : portions) {
-                if (portion != null) {
-                    for (int j = 0; j < portion.portionData.length; j++) {
-                        if (fileData[portion.address + j] != -1) {
-                            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Segments of the binary file overlap. Segment: " + seg.toString());
-                        }
-                        fileData[portion.address + j] = portion.portionData[j];
-                    }
-                }
-            }
-        }
-
-        /*Determine run address*/
-        int runVector = -1;
-
-        /*Create JSR jumps*/
-        if (extra == true) {
-
-            int pos = extraCodeAddress;
-
-            for (Segment seg : segmentList) {
-                if (seg.hasNoVector() == true) {
-                    continue;
-                }
-
-                if (seg.hasFullInitVector() == true) {
-                    int vect = seg.getInitVector();
-                    fileData[pos] = 32;
-                    pos++;
-                    fileData[pos] = vect % 256;
-                    pos++;
-                    fileData[pos] = vect / 256;
-                    pos++;
-                }
-
-                if (seg.hasFullRunVector() == true) {
-                    runVector = seg.getRunVector();
-                }
-            }
-
-            /*Run - generate JMP*/
-            if (runVector > 0) {
-                fileData[pos] = 76;
-                pos++;
-                fileData[pos] = (runVector % 256);
-                pos++;
-                fileData[pos] = (runVector / 256);
-                pos++;
-            }
-
-        }
-        /*Only browse for possible run segments*/ else {
-            for (Segment seg : segmentList) {
-                if (seg.hasFullRunVector() == true) {
-                    runVector = seg.getRunVector();
-                }
-            }
-        }
-
-        /*Determine first and last address of the only DATA segment*/
-        int fa = -1;
-        int la = -1;
+    /**
+     * Create monolithic binary file in memory
+     *
+     * @param extraAdress Address of the jump segment emulation code
+     * @param extra Generate jump segment emulation code
+     * @return The whole monolithic binary file
+     * @throws DOS2BinaryProcessingException
+     */
+    byte[] buildMonolithicBinary(String extraAdress, boolean extra) throws DOS2BinaryProcessingException {
+        return getMonolithicConverter(extraAdress, extra).convert(this);
+    }
 
-        for (int i = 0; i < 65_536; i++) {
-            if (fileData[i] != -1) {
-                fa = i;
-                break;
-            }
-        }
+    private static MonolithicConverter getMonolithicConverter(String extraAdress, boolean extra) {
 
-        for (int i = 65_535; i > -1; i--) {
-            if (fileData[i] != -1) {
-                la = i;
-                break;
-            }
+        if (extra == false) {
+            return new MonolithicConverter();
         }
 
-        if (fa == -1 || la == -1) {
-            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Internal error when determining lowest and highest address.");
+        /*Try to get decimal number, the converter checks the range*/
+        int extraCodeAddress;
+        try {
+            extraCodeAddress = Integer.parseInt(extraAdress);
         }
-
-        /*Untouched addresses must be zeroed*/
-        for (int i = fa; i < la; i++) {
-            if (fileData[i] == -1) {
-                fileData[i] = 0;
-            }
+        catch (NumberFormatException e) {
+            extraCodeAddress = -1;
         }
-
-        /*Writing monolithic binary file*/
-        try (RandomAccessFile raf = new RandomAccessFile(outname, "rw")) {
-            raf.setLength(0);
-
-            /*Header*/
-            raf.writeByte(255);
-            raf.writeByte(255);
-            raf.writeByte(fa % 256);
-            raf.writeByte(fa / 256);
-            raf.writeByte(la % 256);
-            raf.writeByte(la / 256);
-
-            /*Merged data*/
-            for (int i = fa; i <= la; i++) {
-                raf.writeByte(fileData[i]);
-            }
-
-            /*RUN segment*/
-            raf.writeByte(736 % 256);
-            raf.writeByte(736 / 256);
-            raf.writeByte(737 % 256);
-            raf.writeByte(737 / 256);
-
-            int finalRunVector = 0;
-            if (extra == true) {
-                finalRunVector = extraCodeAddress;
-            }
-            if (extra == false && runVector > 0) {
-                finalRunVector = runVector;
-            }
-            if (extra == false && runVector < 0) {
-                finalRunVector = fa;
-            }
-
-            raf.writeByte(finalRunVector % 256);
-            raf.writeByte(finalRunVector / 256);
-        }
-
+        return new MonolithicConverter(extraCodeAddress);
     }
 
     /**
@@ -501,15 +473,7 @@ public class DOS2Binary {
      * @return Number of data segments
      */
     public int getSegmentWithoutVectorCount() {
-        Iterator<Segment> it = segmentList.iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            Segment seg = it.next();
-            if (seg.hasNoVector() == true) {
-                count++;
-            }
-        }
-        return count;
+        return profile.getSegmentWithoutVectorCount();
     }
 
     /**
@@ -518,15 +482,7 @@ public class DOS2Binary {
      * @return Number of segments
      */
     public int getSegmentWithVectorCount() {
-        Iterator<Segment> it = segmentList.iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            Segment seg = it.next();
-            if (!seg.hasNoVector() == true) {
-                count++;
-            }
-        }
-        return count;
+        return profile.getSegmentWithVectorCount();
     }
 
     /**
@@ -535,29 +491,7 @@ public class DOS2Binary {
      * @return Array of offsets
      */
     public int[] getInitLocations() {
-
-        Iterator<Segment> it = segmentList.iterator();
-        int count = 0;
-        while (it.hasNext()) {
-            Segment seg = it.next();
-            if (seg.hasFullInitVector()) {
-                count++;
-            }
-        }
-
-        int[] initLocations = new int[count];
-
-        it = segmentList.iterator();
-        int index = 0;
-        while (it.hasNext()) {
-            Segment seg = it.next();
-            if (seg.hasFullInitVector()) {
-                initLocations[index] = seg.getEndRba();
-                index++;
-            }
-        }
-
-        return initLocations;
+        return profile.getInitLocations();
     }
 
     /**
@@ -588,25 +522,49 @@ public class DOS2Binary {
      * @return true if some segment covers defined memory area
      */
     public boolean coversMemory(int firstAdr, int lastAdr) {
+        return getMemoryMap().overlaps(firstAdr, lastAdr);
+    }
 
-        int l = segmentList.size();
-        Segment s;
-        boolean b;
-        for (int i = 0; i < l; i++) {
-            b = true;
-            s = segmentList.get(i);
-            if ((s.getFirstAddress() < firstAdr) && (s.getLastAddress() < firstAdr)) {
-                b = false;
-            }
-            if ((s.getFirstAddress() > lastAdr) && (s.getLastAddress() > lastAdr)) {
-                b = false;
-            }
-            if (b == true) {
-                return b;
+    /**
+     * Get memory loaded by the segments. Compressed segments load their
+     * decompressed data, segments without data load nothing
+     *
+     * @return Set of memory ranges loaded by at least one segment
+     */
+    public MemoryRangeSet getMemoryMap() {
+
+        MemoryRangeSet m = memoryMap;
+        if (m == null) {
+            ArrayList<MemoryRange> ranges = new ArrayList<>(segmentList.size());
+            for (Segment s : segmentList) {
+                if (s.getLastLoadedAddress() >= s.getFirstAddress()) {
+                    ranges.add(new MemoryRange(s.getFirstAddress(), s.getLastLoadedAddress()));
+                }
             }
+            m = MemoryRangeSet.of(ranges);
+            memoryMap = m;
         }
+        return m;
+    }
+
+    /**
+     * Get summary of the segments
+     *
+     * @return File profile
+     */
+    public FileProfile getProfile() {
+        return profile;
+    }
 
-        return false;
+    /**
+     * Add segment to the end of the file
+     *
+     * @param seg Segment
+     */
+    private void addSegment(Segment seg) {
+        segmentList.add(seg);
+        profile.add(seg);
+        memoryMap = null;
     }
 
     /**
@@ -615,12 +573,7 @@ public class DOS2Binary {
      * @return true When file contains at least one INIT vector
      */
     public boolean hasInitVector() {
-        for (Segment seg : segmentList) {
-            if (seg.hasInitVector() == true) {
-                return true;
-            }
-        }
-        return false;
+        return profile.getInitVectorCount() > 0;
     }
 
     /**
@@ -628,21 +581,11 @@ public class DOS2Binary {
      * @return
      */
     public boolean hasRunVector() {
-        for (Segment seg : segmentList) {
-            if (seg.hasRunVector() == true) {
-                return true;
-            }
-        }
-        return false;
+        return profile.getRunVectorCount() > 0;
     }
 
     public boolean hasCompressedSegment() {
-        for (Segment seg : segmentList) {
-            if (seg.isCompressed() == true) {
-                return true;
-            }
-        }
-        return false;
+        return profile.getCompressedSegmentCount() > 0;
     }
 
     /**
@@ -672,11 +615,14 @@ public class DOS2Binary {
             return false;
         }
 
+        /*No segment at all*/
+        if (segmentCount == 0) {
+            return false;
+        }
+
         /*One segment is always OK, unless there is a partial RUN vector*/
-        Iterator<Segment> segIter = segmentList.iterator();
-        Segment s1 = segIter.next();
         if (segmentCount == 1) {
-            return !s1.hasPartialRunVector();
+            return profile.getPartialRunVectorCount() == 0;
         }
 
         /*If there are two segments, we must ensure that:
@@ -684,7 +630,8 @@ public class DOS2Binary {
           2. Only one of the segments has non-vector data
           3. There is exactly one full specified RUN vector
          */
-        Segment s2 = segIter.next();
+        Segment s1 = segmentList.get(0);
+        Segment s2 = segmentList.get(1);
 
         /* Both have non-vector data - not monolithic*/
         if (s1.hasNonVectorData() == true && s2.hasNonVectorData() == true) {
@@ -715,35 +662,11 @@ public class DOS2Binary {
                Maximum 1 segment with INIT vector. Must be full
                Maximum 1 segment with RUN vector. Must be full
          */
-        int numWithNonVectorData = 0;
-        int numInitVectors = 0;
-        int numRunVectors = 0;
-        int numFullInitVectors = 0;
-        int numFullRunVectors = 0;
-
-        Iterator<Segment> segIter = getSegmentListIterator();
-
-        /*Count segments and vectors*/
-        while (segIter.hasNext()) {
-            Segment seg = segIter.next();
-
-            if (seg.hasNonVectorData()) {
-                numWithNonVectorData++;
-            }
-            if (seg.hasInitVector()) {
-                numInitVectors++;
-            }
-            if (seg.hasFullInitVector()) {
-                numFullInitVectors++;
-            }
-            if (seg.hasRunVector()) {
-                numRunVectors++;
-            }
-            if (seg.hasFullRunVector()) {
-                numFullRunVectors++;
-            }
-
-        }
+        int numWithNonVectorData = profile.getSegmentWithNonVectorDataCount();
+        int numInitVectors = profile.getInitVectorCount();
+        int numRunVectors = profile.getRunVectorCount();
+        int numFullInitVectors = profile.getFullInitVectorCount();
+        int numFullRunVectors = profile.getFullRunVectorCount();
 
         /*More non-vector data or no non-vector data*/
         if (numWithNonVectorData != 1) {
@@ -790,20 +713,7 @@ public class DOS2Binary {
      * @return
      */
     public int getExtraCodeForMergeLength() {
-        int initCounter = 0;
-        int hasRun = 0;
-
-        for (Segment seg : segmentList) {
-            if (seg.hasFullInitVector()) {
-                initCounter++;
-            }
-            if (seg.hasFullRunVector()) {
-                hasRun = 1;
-            }
-        }
-
-        return (initCounter + hasRun) * 3;
-
+        return profile.getExtraCodeForMergeLength();
     }
 
     /**
@@ -815,14 +725,56 @@ public class DOS2Binary {
     }
 
     /**
+     * Test whether the instance is read-only. A read-only instance cannot be
+     * analyzed again and its segments cannot be changed, so it can be shared
+     * by threads
      *
-     * @return
+     * @return true when the instance is read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Make the instance read-only. The memory map is created at once, so
+     * that no state changes after the instance is shared
+     */
+    void setReadOnly() {
+        getMemoryMap();
+        readOnly = true;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("Binary file " + filename + " is read-only");
+        }
+    }
+
+    /**
+     * Get immutable snapshot of the analyzed file. The snapshot shares the
+     * segments with this instance, but later changes of this instance do not
+     * affect it
+     *
+     * @return Snapshot
+     */
+    public BinarySnapshot snapshot() {
+        if (!isAnalyzed) {
+            throw new IllegalStateException("Binary file " + filename + " has not been analyzed");
+        }
+        return BinarySnapshot.of(filename, segmentList);
+    }
+
+    /**
+     * Get iterator over the segments. Segments cannot be removed through the
+     * iterator, so the file profile stays valid
+     *
+     * @return Iterator
      */
     public Iterator<Segment> getSegmentListIterator() {
-        return segmentList.iterator();
+        return Collections.unmodifiableList(segmentList).iterator();
     }
 
-    private String getNegativeSegmentSizeMessage(int w1, int w2) {
+    static String getNegativeSegmentSizeMessage(int w1, int w2) {
 
         StringBuilder sb = new StringBuilder(24);
         sb.append("Segment with negative size found ");
@@ -852,6 +804,7 @@ public class DOS2Binary {
      *
      */
     public void createArtificialRunVector() {
+        checkWritable();
         Iterator<Segment> it = segmentList.iterator();
 
         Segment seg = null;
@@ -865,12 +818,7 @@ public class DOS2Binary {
             return;
         }
 
-        int[] segData = new int[2];
-        segData[0] = seg.getFirstAddress() % 256;
-        segData[1] = seg.getFirstAddress() / 256;
-
-        Segment runVectorSegment = new Segment(736, segData, 0);
-        this.segmentList.add(runVectorSegment);
+        addSegment(Segment.createRunSegment(seg.getFirstAddress()));
 
     }
 
@@ -927,49 +875,189 @@ public class DOS2Binary {
 
     }
 
-    private int processCompressed(int[] fileData, int pos, int firstAddress, int rba) throws DOS2BinaryException {
+    private int processCompressed(HybridDecompression hc, ByteBuffer fileData, int pos, int firstAddress, int rba) throws DOS2BinaryException {
 
-        /*First, check the compression type*/
-        int cmprType = fileData[pos];
-        pos++;
+        HybridDecompression.ResultCrate rc = hc.process(fileData, pos, firstAddress, rba, this.filename);
+        addSegment(rc.newSegment);
+        return rc.newPosition;
 
-        switch (cmprType) {
-            case COMPRESS_LZ4: {
-                HybridDecompression hc = new HybridDecompression();
-                HybridDecompression.ResultCrate rc = hc.processLZ4(fileData, pos, firstAddress, rba, this.filename);
-                this.segmentList.add(rc.newSegment);
-                return rc.newPosition;
-            }
+    }
+
+    public int[] getAllData() {
+        return DTBUtils.getAsIntArray(getAllBytes());
+    }
+
+    /**
+     * Get the whole binary file as it would be written
+     *
+     * @return Array with the $FFFF header and all segments
+     */
+    public byte[] getAllBytes() {
+        return serialize(segmentList);
+    }
+
+    /**
+     * Create binary file from segments
+     *
+     * @param segments Segments
+     * @return Array with the $FFFF header and all segments
+     */
+    static byte[] serialize(Iterable<Segment> segments) {
+
+        /*Determine total length first*/
+        int totalLength = 2;
+        for (Segment s : segments) {
+            totalLength += s.getFullLength();
+        }
+
+        byte[] allData = new byte[totalLength];
+        allData[0] = (byte) 255;
+        allData[1] = (byte) 255;
+        int pos = 2;
+
+        for (Segment s : segments) {
+            pos = s.putFullData(allData, pos);
+        }
+        return allData;
+    }
+
+    /**
+     * Write the whole binary file to a channel, same bytes as getAllBytes().
+     * Segment data are written from the segment buffers without copying,
+     * with gathering writes when the channel supports them. The channel must
+     * be in blocking mode and is not closed
+     *
+     * @param channel Channel
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return write(segmentList, channel);
+    }
+
+    /**
+     * Write the whole binary file to a stream, same bytes as getAllBytes().
+     * The stream is not closed
+     *
+     * @param out Stream
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        return write(segmentList, out);
+    }
+
+    /**
+     * Write binary file created from segments to a channel
+     *
+     * @param segments Segments
+     * @param channel Channel in blocking mode
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    static long write(List<Segment> segments, WritableByteChannel channel) throws IOException {
 
-            case COMPRESS_ZX0: {
-                HybridDecompression hc = new HybridDecompression();
-                HybridDecompression.ResultCrate rc = hc.processZX0(fileData, pos, firstAddress, rba, filename);
-                this.segmentList.add(rc.newSegment);
-                return rc.newPosition;
+        /*All headers are put to one array, buffers are views of it*/
+        int headersLength = 2;
+        for (Segment s : segments) {
+            headersLength += s.getHeaderLength();
+        }
+        byte[] headers = new byte[headersLength];
+        headers[0] = (byte) 255;
+        headers[1] = (byte) 255;
+
+        /*Header and data buffer for each segment, in batches*/
+        int batchSize = Math.min(MAX_GATHER_BUFFERS, 1 + segments.size() * 2);
+        ByteBuffer[] buffers = new ByteBuffer[batchSize];
+        buffers[0] = ByteBuffer.wrap(headers, 0, 2);
+        int count = 1;
+        int pos = 2;
+        long written = 0;
+
+        for (Segment s : segments) {
+            if (count + 2 > batchSize) {
+                written += writeFully(channel, buffers, count);
+                count = 0;
             }
-            case COMPRESS_APLIB: {
-                HybridDecompression hc = new HybridDecompression();
-                HybridDecompression.ResultCrate rc = hc.processAPlib(fileData, pos, firstAddress, rba, filename);
-                this.segmentList.add(rc.newSegment);
-                return rc.newPosition;
+            int headerEnd = s.putHeader(headers, pos);
+            buffers[count++] = ByteBuffer.wrap(headers, pos, headerEnd - pos);
+            buffers[count++] = s.getDataBuffer();
+            pos = headerEnd;
+        }
+
+        written += writeFully(channel, buffers, count);
+        return written;
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+
+        long written = 0;
+
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gc = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < count) {
+                written += gc.write(buffers, first, count - first);
+                /*Skip the buffers written completely*/
+                while (first < count && !buffers[first].hasRemaining()) {
+                    first++;
+                }
             }
-            default: {
-                throw new DOS2BinaryException(filename, String.format("Unsupported compression type $%02X", cmprType), pos);
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                while (buffers[i].hasRemaining()) {
+                    written += channel.write(buffers[i]);
+                }
             }
         }
 
+        /*Do not keep the segment data reachable*/
+        Arrays.fill(buffers, 0, count, null);
+        return written;
     }
 
-    public int[] getAllData() {
-        QuickIntegerVector is = new QuickIntegerVector();
-        is.add(255);
-        is.add(255);
-        Iterator<Segment> it = this.getSegmentListIterator();
-        while (it.hasNext()) {
-            Segment s = it.next();
-            is.add(s.getFullData());
+    /**
+     * Write binary file created from segments to a stream. Headers and data
+     * are collected in a small buffer, so the stream gets few large writes
+     *
+     * @param segments Segments
+     * @param out Stream
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    static long write(List<Segment> segments, OutputStream out) throws IOException {
+
+        byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        chunk[0] = (byte) 255;
+        chunk[1] = (byte) 255;
+        int pos = 2;
+        long written = 0;
+
+        for (Segment s : segments) {
+
+            if (pos + s.getHeaderLength() > chunk.length) {
+                out.write(chunk, 0, pos);
+                written += pos;
+                pos = 0;
+            }
+            pos = s.putHeader(chunk, pos);
+
+            ByteBuffer data = s.getDataBuffer();
+            while (data.hasRemaining()) {
+                if (pos == chunk.length) {
+                    out.write(chunk, 0, pos);
+                    written += pos;
+                    pos = 0;
+                }
+                int l = Math.min(data.remaining(), chunk.length - pos);
+                data.get(chunk, pos, l);
+                pos += l;
+            }
         }
-        return is.toArray();
+
+        out.write(chunk, 0, pos);
+        return written + pos;
     }
 
     public List<ArrayList<Segment>> getInitSlicedSegmentBunches() {
@@ -1042,6 +1130,42 @@ public class DOS2Binary {
         public int loadAddress;
     }
 
+    /**
+     * Result of a structure check
+     */
+    public static class ValidationResultCrate {
+
+        /**
+         * True when the file is a well-formed binary file
+         */
+        public final boolean valid;
+        /**
+         * Offset where the first error was found, -1 when the file is valid
+         */
+        public final int errorOffset;
+        /**
+         * Number of segments read before the first error, or all segments
+         * when the file is valid
+         */
+        public final int segmentCount;
+        /**
+         * True when the file is not a binary file at all
+         */
+        public final boolean alien;
+        /**
+         * Description of the first error, null when the file is valid
+         */
+        public final String message;
+
+        ValidationResultCrate(boolean valid, int errorOffset, int segmentCount, boolean alien, String message) {
+            this.valid = valid;
+            this.errorOffset = errorOffset;
+            this.segmentCount = segmentCount;
+            this.alien = alien;
+            this.message = message;
+        }
+    }
+
     public enum CompressionHandling {
         IGNORE_COMPRESSION,
         REPORT_NOT_SUPPORTED,
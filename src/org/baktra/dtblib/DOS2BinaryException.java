@@ -123,6 +123,14 @@ public class DOS2BinaryException extends Exception {
         return sb.toString();
     }
     
+    /**
+     * Get offset where the problem was found
+     * @return Offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+
     /**
      * Returns true if the exception represents a file that is not a binary file
      * @return True when not a binary file
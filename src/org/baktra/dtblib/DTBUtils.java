@@ -1,8 +1,26 @@
 package org.baktra.dtblib;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
 
 class DTBUtils {
 
+    /**
+     * Files of this size and larger are memory-mapped instead of being read
+     * to the heap
+     */
+    static final long MAP_THRESHOLD = 1_024 * 1_024;
+
     static int[] getAsIntArray(byte[] byteArray) {
         return getAsIntArray(byteArray, byteArray.length);
     }
@@ -21,5 +39,153 @@ class DTBUtils {
 
         return intArray;
     }
-    
+
+    /**
+     * Get view of a part of a buffer. No data are copied
+     *
+     * @param buffer Buffer
+     * @param offset Absolute index of the first byte
+     * @param numBytes Number of bytes
+     * @return Buffer sharing content with the original buffer, position 0,
+     * limit numBytes
+     */
+    static ByteBuffer getView(ByteBuffer buffer, int offset, int numBytes) {
+
+        if (offset < 0 || numBytes < 0 || offset + numBytes > buffer.limit()) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + numBytes);
+        view.position(offset);
+        return view.slice();
+    }
+
+    static byte[] getAsByteArray(int[] intArray) {
+
+        byte[] byteArray = new byte[intArray.length];
+
+        for (int i = 0; i < intArray.length; i++) {
+            byteArray[i] = (byte) intArray[i];
+        }
+
+        return byteArray;
+    }
+
+    /**
+     * Get unsigned byte from a buffer
+     *
+     * @param buffer Buffer
+     * @param index Absolute index
+     * @return Value 0-255
+     */
+    static int getUnsigned(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    /**
+     * Load whole file to a read-only buffer. Buffers are sized from the file
+     * length up front. Small files are read with bulk channel reads, large
+     * files are memory-mapped. Views of a mapped buffer must not be kept
+     * after the file is processed, the mapping would pin the file.
+     *
+     * @param filename File name
+     * @param length Expected file length
+     * @return Read-only buffer with file data, position 0, limit file length
+     * @throws IOException
+     */
+    static ByteBuffer loadFile(String filename, long length) throws IOException {
+
+        try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+
+            /*Large file - map it*/
+            if (length >= MAP_THRESHOLD) {
+                return fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, fc.size())).asReadOnlyBuffer();
+            }
+
+            /*Small file - read it in one go*/
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer) == -1) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Get name of a temporary file in the directory of the target file. The
+     * file is renamed to the target file when it is complete
+     *
+     * @param target Target file
+     * @return Random temporary file name
+     */
+    static Path getTempPath(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    }
+
+    /**
+     * Move a complete temporary file to the target file, atomically when the
+     * file system supports it
+     *
+     * @param temp Temporary file
+     * @param target Target file
+     * @throws IOException
+     */
+    static void moveToTarget(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Write whole file. The data are written to a temporary file in the same
+     * directory first, then the temporary file is renamed, atomically when
+     * the file system supports it. Readers never see a partially written
+     * file
+     *
+     * @param filename File name
+     * @param data Data to be written, from position to limit
+     * @throws IOException
+     */
+    static void writeFile(String filename, ByteBuffer data) throws IOException {
+
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp;
+        FileChannel fc;
+
+        /*Create temporary file with a unique name*/
+        while (true) {
+            temp = getTempPath(target);
+            try {
+                fc = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                break;
+            }
+            catch (FileAlreadyExistsException e) {
+                /*Try another name*/
+            }
+        }
+
+        try {
+            try {
+                while (data.hasRemaining()) {
+                    fc.write(data);
+                }
+            }
+            finally {
+                fc.close();
+            }
+
+            moveToTarget(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
 }
@@ -0,0 +1,254 @@
+package org.baktra.dtblib;
+
+/**
+ * Summary of a DOS 2 Binary File. The profile is collected while the
+ * segments are added to the file, so queries about the whole file do not
+ * need to walk the segments again
+ */
+public class FileProfile {
+
+    /**
+     * Number of buckets of the segment size histogram. Bucket n counts
+     * segments with 2^n to 2^(n+1)-1 data bytes
+     */
+    public static final int HISTOGRAM_BUCKETS = 18;
+
+    private int segmentCount;
+    private int segmentWithoutVectorCount;
+    private int segmentWithNonVectorDataCount;
+    private int runVectorCount;
+    private int fullRunVectorCount;
+    private int partialRunVectorCount;
+    private int initVectorCount;
+    private int fullInitVectorCount;
+    private int compressedSegmentCount;
+
+    /**
+     * Lowest and highest address covered by a segment
+     */
+    private int lowestAddress;
+    private int highestAddress;
+
+    /**
+     * Total number of data bytes, without segment headers
+     */
+    private long payloadBytes;
+
+    /**
+     * Total number of data bytes of compressed segments after decompression
+     */
+    private long decompressedBytes;
+
+    private final int[] sizeHistogram;
+
+    /**
+     * Offsets of the last bytes of segments with full INIT vector
+     */
+    private final QuickIntegerVector initLocations;
+
+    FileProfile() {
+        lowestAddress = Segment.UNKNOWN_ADDRESS;
+        highestAddress = Segment.UNKNOWN_ADDRESS;
+        sizeHistogram = new int[HISTOGRAM_BUCKETS];
+        initLocations = new QuickIntegerVector(16);
+    }
+
+    /**
+     * Account a segment added to the end of the file
+     *
+     * @param seg Segment
+     */
+    void add(Segment seg) {
+
+        segmentCount++;
+
+        if (seg.hasNoVector()) {
+            segmentWithoutVectorCount++;
+        }
+        if (seg.hasNonVectorData()) {
+            segmentWithNonVectorDataCount++;
+        }
+        if (seg.hasRunVector()) {
+            runVectorCount++;
+        }
+        if (seg.hasFullRunVector()) {
+            fullRunVectorCount++;
+        }
+        if (seg.hasPartialRunVector()) {
+            partialRunVectorCount++;
+        }
+        if (seg.hasInitVector()) {
+            initVectorCount++;
+        }
+        if (seg.hasFullInitVector()) {
+            fullInitVectorCount++;
+            initLocations.add(seg.getEndRba());
+        }
+        if (seg.isCompressed()) {
+            compressedSegmentCount++;
+            decompressedBytes += seg.getDecompressedLength();
+        }
+
+        /*Address extent of the loaded memory, decompressed data for
+        compressed segments*/
+        if (seg.getLastLoadedAddress() >= seg.getFirstAddress()) {
+            if (lowestAddress == Segment.UNKNOWN_ADDRESS || seg.getFirstAddress() < lowestAddress) {
+                lowestAddress = seg.getFirstAddress();
+            }
+            if (highestAddress == Segment.UNKNOWN_ADDRESS || seg.getLastLoadedAddress() > highestAddress) {
+                highestAddress = seg.getLastLoadedAddress();
+            }
+        }
+
+        /*Sizes*/
+        int length = seg.getLength();
+        payloadBytes += length;
+        int bucket = (length < 1) ? 0 : 31 - Integer.numberOfLeadingZeros(length);
+        sizeHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+    }
+
+    /**
+     *
+     * @return Total number of segments
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     *
+     * @return Number of segments without RUN or INIT vector
+     */
+    public int getSegmentWithoutVectorCount() {
+        return segmentWithoutVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with RUN or INIT vector
+     */
+    public int getSegmentWithVectorCount() {
+        return segmentCount - segmentWithoutVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments that have some data besides vectors
+     */
+    public int getSegmentWithNonVectorDataCount() {
+        return segmentWithNonVectorDataCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with full or partial RUN vector
+     */
+    public int getRunVectorCount() {
+        return runVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with full RUN vector
+     */
+    public int getFullRunVectorCount() {
+        return fullRunVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with partial RUN vector
+     */
+    public int getPartialRunVectorCount() {
+        return partialRunVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with full or partial INIT vector
+     */
+    public int getInitVectorCount() {
+        return initVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of segments with full INIT vector
+     */
+    public int getFullInitVectorCount() {
+        return fullInitVectorCount;
+    }
+
+    /**
+     *
+     * @return Number of compressed segments
+     */
+    public int getCompressedSegmentCount() {
+        return compressedSegmentCount;
+    }
+
+    /**
+     *
+     * @return Lowest address loaded by a segment or -1 when no segment
+     * loads data
+     */
+    public int getLowestAddress() {
+        return lowestAddress;
+    }
+
+    /**
+     *
+     * @return Highest address loaded by a segment or -1 when no segment
+     * loads data. For compressed segments, the decompressed data count
+     */
+    public int getHighestAddress() {
+        return highestAddress;
+    }
+
+    /**
+     *
+     * @return Total number of data bytes, without segment headers
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     *
+     * @return Total number of bytes of compressed segments after
+     * decompression
+     */
+    public long getDecompressedBytes() {
+        return decompressedBytes;
+    }
+
+    /**
+     * Get segment size histogram
+     *
+     * @return Array of HISTOGRAM_BUCKETS counts. Element n is the number of
+     * segments with 2^n to 2^(n+1)-1 data bytes. The array is a copy
+     */
+    public int[] getSizeHistogram() {
+        return sizeHistogram.clone();
+    }
+
+    /**
+     * Get offsets of segments that have INIT vectors
+     *
+     * @return Array of offsets of the last bytes of the segments
+     */
+    public int[] getInitLocations() {
+        return initLocations.toArray();
+    }
+
+    /**
+     * Get number of bytes required to replace effects of INIT segments and RUN
+     * segment
+     *
+     * @return Number of bytes
+     */
+    public int getExtraCodeForMergeLength() {
+        return (fullInitVectorCount + (fullRunVectorCount > 0 ? 1 : 0)) * 3;
+    }
+
+}
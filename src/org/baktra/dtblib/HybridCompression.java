@@ -0,0 +1,577 @@
+package org.baktra.dtblib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+import org.baktra.dtblib.DOS2Binary.CompressionHandling;
+
+/**
+ * Creation of hybrid compressed segments. Pure data segments are replaced
+ * with compressed segments when the compressed segment is shorter. Segments
+ * with RUN or INIT vectors are kept as they are, so that the vectors remain
+ * visible. Segments of one file are compressed in parallel
+ */
+public class HybridCompression {
+
+    /**
+     * Default number of match candidates examined by the LZ4 compressor for
+     * one position
+     */
+    public static final int DEFAULT_LZ4_MAX_CHAIN = 256;
+
+    /**
+     * Number of match candidates examined by the aPLib compressor for one
+     * position
+     */
+    private static final int APLIB_MAX_CHAIN = 64;
+
+    /**
+     * Matches at least this long are taken by the aPLib compressor at once
+     */
+    private static final int APLIB_NICE_LENGTH = 256;
+
+    /**
+     * Segments shorter than this are not repacked
+     */
+    private static final int MIN_REPACK_LENGTH = 8;
+
+    /**
+     * Segments in which the match probe covers less than this fraction of
+     * the bytes are not repacked. The fraction is 1/n
+     */
+    private static final int PROBE_MIN_MATCH_SHARE = 32;
+
+    /**
+     * Number of bits of the hash of the match probe
+     */
+    private static final int PROBE_HASH_BITS = 12;
+
+    /**
+     * Codecs tried by repacking
+     */
+    private static final int[] REPACK_TYPES = {HybridDecompression.COMPRESS_LZ4, HybridDecompression.COMPRESS_APLIB, HybridDecompression.COMPRESS_ZX0};
+
+    /**
+     * ZX0 quality. Greedy parse, short match search
+     */
+    public static final int ZX0_QUALITY_FAST = 1;
+
+    /**
+     * ZX0 quality. Near-optimal parse keeping a few states per position
+     */
+    public static final int ZX0_QUALITY_NORMAL = 2;
+
+    /**
+     * ZX0 quality. Near-optimal parse keeping many states per position, deep
+     * match search
+     */
+    public static final int ZX0_QUALITY_BEST = 3;
+
+    /**
+     * LZ4 compressor for each thread
+     */
+    private final ThreadLocal<LZ4Encoder> lz4Encoder;
+
+    /**
+     * ZX0 compressor for each thread
+     */
+    private final ThreadLocal<ZX0Encoder> zx0Encoder;
+
+    /**
+     * aPLib compressor for each thread
+     */
+    private final ThreadLocal<APlibEncoder> aplibEncoder;
+
+    /**
+     * Time limit of the ZX0 parse of one segment in nanoseconds, 0 for no
+     * limit
+     */
+    private final long zx0TimeBudget;
+
+    /**
+     * Create new instance with default settings
+     */
+    public HybridCompression() {
+        this(DEFAULT_LZ4_MAX_CHAIN, ZX0_QUALITY_NORMAL, 0);
+    }
+
+    /**
+     * Create new instance
+     *
+     * @param lz4MaxChain Number of match candidates examined by the LZ4
+     * compressor for one position. Higher values give better compression
+     * and slower processing
+     * @param zx0Quality ZX0 quality, one of the ZX0_QUALITY_ constants
+     * @param zx0TimeBudgetMillis Time limit of the ZX0 parse of one segment
+     * in milliseconds, 0 for no limit. When the limit is exceeded, the rest
+     * of the segment is compressed with the fastest settings
+     */
+    public HybridCompression(int lz4MaxChain, int zx0Quality, long zx0TimeBudgetMillis) {
+        if (lz4MaxChain < 1) {
+            throw new IllegalArgumentException("Number of match candidates must be at least 1");
+        }
+        if (zx0TimeBudgetMillis < 0) {
+            throw new IllegalArgumentException("Time budget must not be negative");
+        }
+        lz4Encoder = ThreadLocal.withInitial(() -> new LZ4Encoder(lz4MaxChain));
+
+        switch (zx0Quality) {
+            case ZX0_QUALITY_FAST: {
+                zx0Encoder = ThreadLocal.withInitial(() -> new ZX0Encoder(1, 16, 32));
+                break;
+            }
+            case ZX0_QUALITY_NORMAL: {
+                zx0Encoder = ThreadLocal.withInitial(() -> new ZX0Encoder(4, 64, 128));
+                break;
+            }
+            case ZX0_QUALITY_BEST: {
+                zx0Encoder = ThreadLocal.withInitial(() -> new ZX0Encoder(12, 1_024, 512));
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException("Unsupported ZX0 quality " + zx0Quality);
+            }
+        }
+        zx0TimeBudget = zx0TimeBudgetMillis * 1_000_000L;
+        aplibEncoder = ThreadLocal.withInitial(() -> new APlibEncoder(APLIB_MAX_CHAIN, APLIB_NICE_LENGTH));
+    }
+
+    /**
+     * Compress data to LZ4 stream accepted by
+     * HybridDecompression.decompressLZ4()
+     *
+     * @param data Data
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return LZ4 stream
+     */
+    public byte[] compressLZ4(byte[] data, int offset, int length) {
+        return lz4Encoder.get().compress(data, offset, length);
+    }
+
+    /**
+     * Compress data to ZX0 stream accepted by
+     * HybridDecompression.decompressZX0(). Match search is done in parallel
+     *
+     * @param data Data
+     * @param offset Offset of the first byte
+     * @param length Number of bytes, at least 1
+     * @return ZX0 stream
+     */
+    public byte[] compressZX0(byte[] data, int offset, int length) {
+        long deadline = (zx0TimeBudget == 0) ? Long.MAX_VALUE : System.nanoTime() + zx0TimeBudget;
+        return zx0Encoder.get().compress(data, offset, length, deadline);
+    }
+
+    /**
+     * Compress data to aPLib stream accepted by
+     * HybridDecompression.decompressAPlib(). Match search is done in
+     * parallel
+     *
+     * @param data Data
+     * @param offset Offset of the first byte
+     * @param length Number of bytes, at least 1
+     * @return aPLib stream
+     */
+    public byte[] compressAPlib(byte[] data, int offset, int length) {
+        return aplibEncoder.get().compress(data, offset, length);
+    }
+
+    /**
+     * Compress a segment
+     *
+     * @param seg Segment
+     * @param compressionType Compression type
+     * @return Compressed segment or the original segment when the segment
+     * cannot be compressed or compression does not save space
+     */
+    public Segment compressSegment(Segment seg, int compressionType) {
+
+        checkCompressionType(compressionType);
+
+        /*Only pure data segments are compressed*/
+        if (seg.isCompressed() || !seg.hasNoVector()) {
+            return seg;
+        }
+
+        byte[] data = seg.getBytes();
+        byte[] stream = compressData(data, compressionType);
+
+        /*Compressed segment has one extra header byte*/
+        if (stream.length + 1 >= data.length) {
+            return seg;
+        }
+
+        return new Segment(seg.getFirstAddress(), ByteBuffer.wrap(stream), seg.getRba(), ByteBuffer.wrap(data), compressionType);
+    }
+
+    private byte[] compressData(byte[] data, int compressionType) {
+        switch (compressionType) {
+            case HybridDecompression.COMPRESS_LZ4: {
+                return compressLZ4(data, 0, data.length);
+            }
+            case HybridDecompression.COMPRESS_ZX0: {
+                return compressZX0(data, 0, data.length);
+            }
+            case HybridDecompression.COMPRESS_APLIB: {
+                return compressAPlib(data, 0, data.length);
+            }
+            default: {
+                throw new IllegalArgumentException("Unsupported compression type " + compressionType);
+            }
+        }
+    }
+
+    /**
+     * Compress all segments of a binary file. The segments are compressed in
+     * parallel. The compressed segments are verified by decompression
+     *
+     * @param source Binary file
+     * @param compressionType Compression type
+     * @return New binary file
+     * @throws DOS2BinaryProcessingException
+     */
+    public DOS2Binary compress(DOS2Binary source, int compressionType) throws DOS2BinaryProcessingException {
+
+        return build(source, compressSegments(source, compressionType));
+    }
+
+    /**
+     * Repack a binary file, each pure data segment is compressed with the
+     * codec that gives the shortest segment. Segments are left as they are
+     * when no codec saves space. Segments in which a quick search finds
+     * almost no repeated strings are not compressed at all. All codecs for
+     * all segments run in parallel in the common fork/join pool
+     *
+     * @param source Binary file
+     * @return New binary file and savings for each segment
+     * @throws DOS2BinaryProcessingException
+     */
+    public RepackResultCrate repack(DOS2Binary source) throws DOS2BinaryProcessingException {
+        return repack(source, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Repack a binary file, each pure data segment is compressed with the
+     * codec that gives the shortest segment. Segments are left as they are
+     * when no codec saves space. Segments in which a quick search finds
+     * almost no repeated strings are not compressed at all
+     *
+     * @param source Binary file
+     * @param pool Pool that runs the codecs
+     * @return New binary file and savings for each segment
+     * @throws DOS2BinaryProcessingException
+     */
+    public RepackResultCrate repack(DOS2Binary source, ForkJoinPool pool) throws DOS2BinaryProcessingException {
+
+        List<Segment> segments = getSegments(source);
+        List<SegmentTask> tasks = new ArrayList<>(segments.size());
+        for (Segment seg : segments) {
+            tasks.add(new SegmentTask(seg));
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        Segment[] repacked = new Segment[tasks.size()];
+        SegmentRepackCrate[] reports = new SegmentRepackCrate[tasks.size()];
+        for (int i = 0; i < repacked.length; i++) {
+            Segment original = segments.get(i);
+            repacked[i] = tasks.get(i).join();
+            reports[i] = new SegmentRepackCrate(i, repacked[i].isCompressed() ? repacked[i].getCompressionType() : -1, original.getFullLength(), repacked[i].getFullLength());
+        }
+
+        return new RepackResultCrate(build(source, repacked), reports);
+    }
+
+    /**
+     * Create the new binary file directly from the segments. Compressed
+     * segments are verified first
+     */
+    private DOS2Binary build(DOS2Binary source, Segment[] segments) throws DOS2BinaryProcessingException {
+
+        HybridDecompression hd = new HybridDecompression();
+        for (Segment seg : segments) {
+            if (seg.isCompressed()) {
+                verify(hd, source.getFileName(), seg);
+            }
+        }
+        return new DOS2Binary(source.getFileName(), CompressionHandling.FULL_SUPPORT, Arrays.asList(segments));
+    }
+
+    /**
+     * Check that the stream of a compressed segment decompresses to the
+     * data of the segment and ends where the segment ends
+     */
+    private static void verify(HybridDecompression hd, String filename, Segment seg) throws DOS2BinaryProcessingException {
+
+        ByteBuffer stream = seg.getDataBuffer();
+        byte[] output = new byte[HybridDecompression.MAX_DECOMPRESSED_SIZE - seg.getFirstAddress()];
+        int length;
+
+        try {
+            switch (seg.getCompressionType()) {
+                case HybridDecompression.COMPRESS_LZ4: {
+                    length = hd.decompressLZ4(stream, 0, output, 0, output.length, filename);
+                    break;
+                }
+                case HybridDecompression.COMPRESS_ZX0: {
+                    length = hd.decompressZX0(stream, 0, output, 0, output.length, filename);
+                    break;
+                }
+                case HybridDecompression.COMPRESS_APLIB: {
+                    length = hd.decompressAPlib(stream, 0, output, 0, output.length, filename);
+                    break;
+                }
+                default: {
+                    throw new DOS2BinaryProcessingException("Internal error: Unsupported compression type " + seg.getCompressionType());
+                }
+            }
+        }
+        catch (DOS2BinaryException e) {
+            throw new DOS2BinaryProcessingException("Internal error: Compressed segment is not valid. " + e.getMessage());
+        }
+
+        if (hd.getSourceEnd() != stream.limit() || !ByteBuffer.wrap(output, 0, length).equals(seg.getDecompressedDataBuffer())) {
+            throw new DOS2BinaryProcessingException("Internal error: Compressed segment does not decompress to its data. Segment: " + seg.toString());
+        }
+    }
+
+    /**
+     * Compress all segments of a binary file and write the new binary file.
+     * The segments are compressed in parallel
+     *
+     * @param source Binary file
+     * @param compressionType Compression type
+     * @param outname Output file
+     * @throws IOException
+     */
+    public void compressToFile(DOS2Binary source, int compressionType, String outname) throws IOException {
+        byte[] allBytes = DOS2Binary.serialize(Arrays.asList(compressSegments(source, compressionType)));
+        DTBUtils.writeFile(outname, ByteBuffer.wrap(allBytes));
+    }
+
+    private Segment[] compressSegments(DOS2Binary source, int compressionType) {
+
+        checkCompressionType(compressionType);
+
+        List<Segment> segments = getSegments(source);
+        Segment[] compressed = new Segment[segments.size()];
+        IntStream.range(0, compressed.length).parallel().forEach(i -> compressed[i] = compressSegment(segments.get(i), compressionType));
+        return compressed;
+    }
+
+    private static List<Segment> getSegments(DOS2Binary source) {
+        ArrayList<Segment> segments = new ArrayList<>(source.getTotalSegmentCount());
+        Iterator<Segment> it = source.getSegmentListIterator();
+        while (it.hasNext()) {
+            segments.add(it.next());
+        }
+        return segments;
+    }
+
+    /**
+     * Check whether compression of data cannot pay off. All codecs replace
+     * repeated strings with references, so the data are probed with one
+     * fast greedy pass that looks up 4-byte strings in a small hash table
+     * of last positions, as the LZ4 fast mode does. When the matches found
+     * cover only a small fraction of the data, no codec can save much
+     *
+     * @param data Data
+     * @return True when the data should be left uncompressed
+     */
+    static boolean isIncompressible(byte[] data) {
+
+        if (data.length < MIN_REPACK_LENGTH) {
+            return true;
+        }
+
+        int[] table = new int[1 << PROBE_HASH_BITS];
+        Arrays.fill(table, -1);
+        int matched = 0;
+        int limit = data.length - 4;
+        int i = 0;
+
+        while (i <= limit) {
+            int key = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+            int h = (key * -1_640_531_535) >>> (32 - PROBE_HASH_BITS);
+            int candidate = table[h];
+            table[h] = i;
+
+            if (candidate >= 0 && data[candidate] == data[i] && data[candidate + 1] == data[i + 1] && data[candidate + 2] == data[i + 2] && data[candidate + 3] == data[i + 3]) {
+                int l = 4;
+                while (i + l < data.length && data[candidate + l] == data[i + l]) {
+                    l++;
+                }
+                matched += l;
+                i += l;
+            }
+            else {
+                i++;
+            }
+        }
+
+        return matched < data.length / PROBE_MIN_MATCH_SHARE;
+    }
+
+    private static void checkCompressionType(int compressionType) {
+        if (compressionType != HybridDecompression.COMPRESS_LZ4 && compressionType != HybridDecompression.COMPRESS_ZX0 && compressionType != HybridDecompression.COMPRESS_APLIB) {
+            throw new IllegalArgumentException("Unsupported compression type " + compressionType);
+        }
+    }
+
+    /**
+     * Compression of one segment with all codecs. The codecs run as separate
+     * tasks, the shortest result wins
+     */
+    private final class SegmentTask extends RecursiveTask<Segment> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Segment seg;
+
+        SegmentTask(Segment seg) {
+            this.seg = seg;
+        }
+
+        @Override
+        protected Segment compute() {
+
+            /*Only pure data segments are compressed*/
+            if (seg.isCompressed() || !seg.hasNoVector()) {
+                return seg;
+            }
+
+            byte[] data = seg.getBytes();
+            if (isIncompressible(data)) {
+                return seg;
+            }
+
+            CodecTask[] codecs = new CodecTask[REPACK_TYPES.length];
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i] = new CodecTask(data, REPACK_TYPES[i]);
+            }
+            invokeAll(codecs);
+
+            /*Compressed segment has one extra header byte*/
+            int bestType = -1;
+            byte[] best = null;
+            for (CodecTask codec : codecs) {
+                byte[] stream = codec.join();
+                if (stream.length + 1 < data.length && (best == null || stream.length < best.length)) {
+                    best = stream;
+                    bestType = codec.compressionType;
+                }
+            }
+
+            if (best == null) {
+                return seg;
+            }
+            return new Segment(seg.getFirstAddress(), ByteBuffer.wrap(best), seg.getRba(), ByteBuffer.wrap(data), bestType);
+        }
+    }
+
+    /**
+     * Compression of data with one codec
+     */
+    private final class CodecTask extends RecursiveTask<byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int compressionType;
+
+        CodecTask(byte[] data, int compressionType) {
+            this.data = data;
+            this.compressionType = compressionType;
+        }
+
+        @Override
+        protected byte[] compute() {
+            return compressData(data, compressionType);
+        }
+    }
+
+    /**
+     * Result of repacking of one segment
+     */
+    public static class SegmentRepackCrate {
+
+        /**
+         * Index of the segment
+         */
+        public final int index;
+        /**
+         * Compression type of the new segment, -1 when the segment was left
+         * as it was
+         */
+        public final int compressionType;
+        /**
+         * Length of the original segment including header
+         */
+        public final int originalLength;
+        /**
+         * Length of the new segment including header
+         */
+        public final int newLength;
+
+        SegmentRepackCrate(int index, int compressionType, int originalLength, int newLength) {
+            this.index = index;
+            this.compressionType = compressionType;
+            this.originalLength = originalLength;
+            this.newLength = newLength;
+        }
+
+        /**
+         *
+         * @return Number of bytes saved
+         */
+        public int getSavedBytes() {
+            return originalLength - newLength;
+        }
+    }
+
+    /**
+     * Result of repacking of a binary file
+     */
+    public static class RepackResultCrate {
+
+        /**
+         * Repacked binary file
+         */
+        public final DOS2Binary binary;
+        /**
+         * Result for each segment, in order of the segments
+         */
+        public final SegmentRepackCrate[] segments;
+
+        RepackResultCrate(DOS2Binary binary, SegmentRepackCrate[] segments) {
+            this.binary = binary;
+            this.segments = segments;
+        }
+
+        /**
+         *
+         * @return Total number of bytes saved
+         */
+        public int getSavedBytes() {
+            int saved = 0;
+            for (SegmentRepackCrate s : segments) {
+                saved += s.getSavedBytes();
+            }
+            return saved;
+        }
+    }
+
+}
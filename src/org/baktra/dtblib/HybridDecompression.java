@@ -1,5 +1,8 @@
 package org.baktra.dtblib;
-import java.util.logging.Level;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.baktra.dtblib.DTBUtils.getUnsigned;
 
 
 public class HybridDecompression {
@@ -16,297 +19,495 @@ public class HybridDecompression {
 
     }
     
-    protected static final int COMPRESS_LZ4=0;
-    protected static final int COMPRESS_APLIB=1;
-    protected static final int COMPRESS_ZX0=2;
-    
-
-    protected ResultCrate processLZ4(int[] fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
-
-        int originalPos = pos;
-
-        /*Now decompress the data. The decompressed data is not that important, but we need to find end of the segment*/
-        try {
+    public static final int COMPRESS_LZ4=0;
+    public static final int COMPRESS_APLIB=1;
+    public static final int COMPRESS_ZX0=2;
+
+    /**
+     * Maximum size of decompressed data of one segment
+     */
+    static final int MAX_DECOMPRESSED_SIZE = 65_536;
+
+    /**
+     * Offset of the first byte of the processed data within the binary file.
+     * Used to report offsets when only a part of the file is processed
+     */
+    private int offsetBase;
+
+    /**
+     * Position in the source data after the last decompressed stream
+     */
+    private int sourceEnd;
+
+    /**
+     * Scratch buffer for decompressed data, allocated on first use
+     */
+    private byte[] scratch;
+
+    /**
+     * Set offset of the processed data within the binary file
+     *
+     * @param offsetBase Offset of the processed data within the file
+     */
+    void setOffsetBase(int offsetBase) {
+        this.offsetBase = offsetBase;
+    }
 
-            while (true) {
+    /**
+     * Get position in the source data right after the stream decompressed
+     * by the last call of a decompression method
+     *
+     * @return Position after the compressed stream
+     */
+    public int getSourceEnd() {
+        return sourceEnd;
+    }
 
-                int token;
-                int litLen;
+    /**
+     * Process compressed segment. The compression type byte is at the
+     * given position
+     *
+     * @param fileData Binary file data
+     * @param pos Position of the compression type byte
+     * @param firstAddress First address of the segment
+     * @param rba Relative byte address of the segment
+     * @param filename File name
+     * @return Crate with the new segment and position after the segment
+     * @throws DOS2BinaryException
+     */
+    ResultCrate process(ByteBuffer fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
+
+        /*First, check the compression type*/
+        int cmprType = getUnsigned(fileData, pos);
+        pos++;
+
+        switch (cmprType) {
+            case COMPRESS_LZ4: {
+                return processLZ4(fileData, pos, firstAddress, rba, filename);
+            }
+            case COMPRESS_ZX0: {
+                return processZX0(fileData, pos, firstAddress, rba, filename);
+            }
+            case COMPRESS_APLIB: {
+                return processAPlib(fileData, pos, firstAddress, rba, filename);
+            }
+            default: {
+                throw new DOS2BinaryException(filename, String.format("Unsupported compression type $%02X", cmprType), pos + offsetBase);
+            }
+        }
+    }
+    
 
-                /*Get token*/
-                token = fileData[pos];
-                pos++;
+    /**
+     * Find end of a compressed segment. The compression type byte is at the
+     * given position. The data are decompressed to the scratch buffer, no
+     * segment is created
+     *
+     * @param fileData Binary file data
+     * @param pos Position of the compression type byte
+     * @param firstAddress First address of the segment
+     * @param filename File name
+     * @return Position after the segment
+     * @throws DOS2BinaryException
+     */
+    int skip(ByteBuffer fileData, int pos, int firstAddress, String filename) throws DOS2BinaryException {
+
+        int cmprType = getUnsigned(fileData, pos);
+        pos++;
+
+        int outputLength = MAX_DECOMPRESSED_SIZE - firstAddress;
+        switch (cmprType) {
+            case COMPRESS_LZ4: {
+                decompressLZ4(fileData, pos, getScratch(), 0, outputLength, filename);
+                break;
+            }
+            case COMPRESS_ZX0: {
+                decompressZX0(fileData, pos, getScratch(), 0, outputLength, filename);
+                break;
+            }
+            case COMPRESS_APLIB: {
+                decompressAPlib(fileData, pos, getScratch(), 0, outputLength, filename);
+                break;
+            }
+            default: {
+                throw new DOS2BinaryException(filename, String.format("Unsupported compression type $%02X", cmprType), pos + offsetBase);
+            }
+        }
+        return sourceEnd;
+    }
 
-                /*If there is a literal*/
-                if ((token >> 4) != 0) {
+    protected ResultCrate processLZ4(ByteBuffer fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
 
-                    /*Get initial length*/
-                    litLen = (token >> 4);
+        /*Decompress the data to the scratch buffer*/
+        byte[] output = getScratch();
+        int length = decompressLZ4(fileData, pos, output, 0, MAX_DECOMPRESSED_SIZE - firstAddress, filename);
 
-                    /*If more bytes of length*/
-                    if (litLen == 0x0F) {
+        /*Now we can construct a segment and add it to the binary load file*/
+        ByteBuffer rawData = DTBUtils.getView(fileData, pos, sourceEnd - pos);
+        ByteBuffer decompressedData = ByteBuffer.wrap(Arrays.copyOf(output, length));
 
-                        int b;
+        Segment s = new Segment(firstAddress, rawData, rba, decompressedData, COMPRESS_LZ4);
+        return new ResultCrate(sourceEnd, s);
 
-                        do {
-                            /*Get another byte*/
-                            b = fileData[pos];
-                            pos++;
-                            /*Add to the literal length*/
-                            litLen += b;
-                        } while (b == 0xFF);
+    }
 
+    /**
+     * Decompress LZ4 stream to a caller-supplied buffer. No memory is
+     * allocated. The stream ends with a zero match offset. Position after the
+     * stream is available from getSourceEnd()
+     *
+     * @param source Source data
+     * @param pos Position of the first byte of the stream
+     * @param output Output buffer
+     * @param outputOffset Offset of the first output byte
+     * @param outputLength Maximum number of output bytes
+     * @param filename File name used in error messages
+     * @return Number of decompressed bytes
+     * @throws DOS2BinaryException When the stream is corrupt or does not fit
+     * to the output buffer
+     */
+    public int decompressLZ4(ByteBuffer source, int pos, byte[] output, int outputOffset, int outputLength, String filename) throws DOS2BinaryException {
+
+        int srcLimit = source.limit();
+        int op = outputOffset;
+        int opLimit = outputOffset + outputLength;
+
+        while (true) {
+
+            /*Get token*/
+            if (pos >= srcLimit) {
+                throw truncated(filename, pos);
+            }
+            int token = source.get(pos++) & 0xFF;
+
+            /*Get literal length*/
+            int litLen = token >>> 4;
+            if (litLen == 0x0F) {
+                int b;
+                do {
+                    if (pos >= srcLimit) {
+                        throw truncated(filename, pos);
                     }
+                    b = source.get(pos++) & 0xFF;
+                    litLen += b;
+                } while (b == 0xFF);
+            }
 
-                    /*Skip the literal of given length*/
-                    pos += litLen;
-                }
-
-                /*Get another two bytes for matchcopy*/
-                int b1 = fileData[pos];
-                pos++;
-                int b2 = fileData[pos];
-                pos++;
-
-                /*If both zero, then decompression is complete*/
-                if (b1 == 0 && b2 == 0) {
-                    break;
-                }
+            /*Copy the literal*/
+            if (litLen > srcLimit - pos) {
+                throw truncated(filename, pos);
+            }
+            if (litLen > opLimit - op) {
+                throw overflow(filename, pos);
+            }
+            for (int i = 0; i < litLen; i++) {
+                output[op + i] = source.get(pos + i);
+            }
+            pos += litLen;
+            op += litLen;
 
-                /*Otherwise, we have backward links*/
-                int matchLen = 0x04 + (token & 0x0F);
+            /*Get match offset. Zero offset terminates the stream*/
+            if (srcLimit - pos < 2) {
+                throw truncated(filename, pos);
+            }
+            int offset = (source.get(pos) & 0xFF) | ((source.get(pos + 1) & 0xFF) << 8);
+            pos += 2;
 
-                if (matchLen == 0x13) {
-                    do {
-                        b1 = fileData[pos];
-                        pos++;
-                        matchLen += b1;
-                    } while (b1 == 0xFF);
-                }
+            if (offset == 0) {
+                break;
+            }
 
+            /*Get match length*/
+            int matchLen = 0x04 + (token & 0x0F);
+            if (matchLen == 0x13) {
+                int b;
+                do {
+                    if (pos >= srcLimit) {
+                        throw truncated(filename, pos);
+                    }
+                    b = source.get(pos++) & 0xFF;
+                    matchLen += b;
+                } while (b == 0xFF);
             }
 
-            /*Now we can construct a segment and add it to the binary load file*/
-            int[] rawData = new int[pos - originalPos];
-            System.arraycopy(fileData, originalPos, rawData, 0, rawData.length);
-            
-            
-            Segment s = new Segment(firstAddress, rawData, rba, new int[0],COMPRESS_LZ4);
-            return new ResultCrate(pos, s);
+            /*Copy the match*/
+            if (offset > op - outputOffset) {
+                throw new DOS2BinaryException(filename, "Compressed data refer before start of decompressed data", pos + offsetBase);
+            }
+            if (matchLen > opLimit - op) {
+                throw overflow(filename, pos);
+            }
+            copyMatch(output, op, offset, matchLen);
+            op += matchLen;
+        }
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new DOS2BinaryException(filename, "Compressed data continue beyond end of file", pos);
-        } catch (Exception e2) {
-            throw new DOS2BinaryException(filename, "Decompression failed", pos);
+        sourceEnd = pos;
+        return op - outputOffset;
+    }
 
+    /**
+     * Copy match within the output buffer. Bulk copy is used when the
+     * regions do not overlap
+     */
+    private static void copyMatch(byte[] output, int op, int offset, int length) {
+        int from = op - offset;
+        if (offset >= length) {
+            System.arraycopy(output, from, output, op, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                output[op + i] = output[from + i];
+            }
         }
+    }
 
+    private DOS2BinaryException truncated(String filename, int pos) {
+        return new DOS2BinaryException(filename, "Compressed data continue beyond end of file", pos + offsetBase);
     }
 
-    protected ResultCrate processZX0(int[] fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
+    private DOS2BinaryException overflow(String filename, int pos) {
+        return new DOS2BinaryException(filename, "Decompressed data do not fit to the available space", pos + offsetBase);
+    }
 
-        try {
-            int originalPos = pos;
+    private byte[] getScratch() {
+        if (scratch == null) {
+            scratch = new byte[MAX_DECOMPRESSED_SIZE];
+        }
+        return scratch;
+    }
 
-            int state = ZX0_LITERAL;
-            MiniBitStream bs = new MiniBitStream(fileData, pos);
+    protected ResultCrate processZX0(ByteBuffer fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
 
-            outerLoop:
-            while (true) {
+        /*Decompress the data to the scratch buffer*/
+        byte[] output = getScratch();
+        int length = decompressZX0(fileData, pos, output, 0, MAX_DECOMPRESSED_SIZE - firstAddress, filename);
 
-                switch (state) {
-                    case ZX0_LITERAL: {
+        /*Now we can construct a segment and add it to the binary load file*/
+        ByteBuffer rawData = DTBUtils.getView(fileData, pos, sourceEnd - pos);
+        ByteBuffer decompressedData = ByteBuffer.wrap(Arrays.copyOf(output, length));
 
-                        /*Get elias gamma*/
-                        int literalSize = getEliasGamma(bs);
+        Segment s = new Segment(firstAddress, rawData, rba, decompressedData, COMPRESS_ZX0);
+        return new ResultCrate(sourceEnd, s);
+    }
 
-                        /*Update posotion*/
-                        for (int i = 0; i < literalSize; i++) {
-                            bs.getNextByte();
-                        }
+    /**
+     * Decompress ZX0 stream to a caller-supplied buffer. No memory is
+     * allocated. The stream ends with an offset MSB of 256. Position after
+     * the stream is available from getSourceEnd()
+     *
+     * @param source Source data
+     * @param pos Position of the first byte of the stream
+     * @param output Output buffer
+     * @param outputOffset Offset of the first output byte
+     * @param outputLength Maximum number of output bytes
+     * @param filename File name used in error messages
+     * @return Number of decompressed bytes
+     * @throws DOS2BinaryException When the stream is corrupt or does not fit
+     * to the output buffer
+     */
+    public int decompressZX0(ByteBuffer source, int pos, byte[] output, int outputOffset, int outputLength, String filename) throws DOS2BinaryException {
+        if (zx0 == null) {
+            zx0 = new ZX0Decomp();
+        }
+        return zx0.depack(source, pos, output, outputOffset, outputLength, filename);
+    }
 
+    /**
+     * ZX0 decompressor, reusable
+     */
+    private ZX0Decomp zx0;
+
+    /**
+     * ZX0 decompressor. Bytes and bit groups are interleaved in the stream -
+     * the next group of 8 bits is fetched at the moment the previous one is
+     * exhausted, so the bits cannot be prefetched. The current group is held
+     * in a register with a marker bit behind the data bits, so one compare
+     * per bit tells when to fetch the next group.
+     */
+    class ZX0Decomp {
+
+        /**
+         * Register value when all data bits were shifted out
+         */
+        private static final int BITS_EMPTY = 0x80_00_00_00;
+
+        private ByteBuffer source;
+        private int sourcePos;
+        private int sourceLimit;
+        private int bits;
+        private String filename;
+
+        int depack(ByteBuffer source, int pos, byte[] output, int outputOffset, int outputLength, String filename) throws DOS2BinaryException {
+
+            this.source = source;
+            this.sourcePos = pos;
+            this.sourceLimit = source.limit();
+            this.bits = BITS_EMPTY;
+            this.filename = filename;
+
+            int op = outputOffset;
+            int opLimit = outputOffset + outputLength;
+            int lastOffset = 1;
+            int length;
 
-                        /*Determine what next*/
-                        boolean b = bs.getNextBit();
+            outerLoop:
+            while (true) {
 
-                        if (b == true) {
-                            state = ZX0_COPY_FROM_NEW;
-                        } else {
-                            state = ZX0_COPY_FROM_LAST;
-                        }
-                        break;
-                    }
-                    case ZX0_COPY_FROM_LAST: {
+                /*Copy literals*/
+                length = getEliasGamma(getBit());
+                if (length > sourceLimit - sourcePos) {
+                    throw truncated(filename, sourcePos);
+                }
+                if (length > opLimit - op) {
+                    throw overflow(filename, sourcePos);
+                }
+                for (int i = 0; i < length; i++) {
+                    output[op + i] = source.get(sourcePos + i);
+                }
+                sourcePos += length;
+                op += length;
 
-                        getEliasGamma(bs);
+                /*Copy from last offset*/
+                if (getBit() == 0) {
+                    length = getEliasGamma(getBit());
+                    op = copy(output, outputOffset, op, opLimit, lastOffset, length);
 
-                        if (!bs.getNextBit()) {
-                            state = ZX0_LITERAL;
-                        } else {
-                            state = ZX0_COPY_FROM_NEW;
-                        }
-                        break;
+                    if (getBit() == 0) {
+                        continue;
                     }
-                    case ZX0_COPY_FROM_NEW: {
-
-                        int msb = getEliasGamma(bs);
-
-                        /*if msb equal to 256, we reached EOF*/
-                        if (msb == 256) {
-                            state = ZX0_EOF;
-                            break;
-                        }
-
-                        /*LSB - 7 bits*/
-                        bs.getNextByte();
-                        bs.backTrack();
-
-                        /*Number of repetitions - 1*/
-                        getEliasGamma(bs);
+                }
 
-                        /*Continuation*/
-                        if (bs.getNextBit()) {
-                            state = ZX0_COPY_FROM_NEW;
-                        } else {
-                            state = ZX0_LITERAL;
-                        }
-                        
+                /*Copy from new offset, as long as the continuation bit is set*/
+                do {
+                    int msb = getEliasGamma(getBit());
 
-                        break;
-                    }
-                    case ZX0_EOF: {
+                    /*If msb equal to 256, we reached EOF*/
+                    if (msb == 256) {
                         break outerLoop;
                     }
 
-                }
-
-            }
-
-            pos = bs.getPosition();
-
-            /*Now we can construct a segment and add it to the binary load file*/
-            int[] rawData = new int[pos - originalPos];
-            System.arraycopy(fileData, originalPos, rawData, 0, rawData.length);
+                    /*LSB - 7 bits, the lowest bit is the first bit of the length*/
+                    int lsb = getByte();
+                    lastOffset = msb * 128 - (lsb >>> 1);
 
-            Segment s = new Segment(firstAddress, rawData, rba, new int[0],COMPRESS_ZX0);
-            return new ResultCrate(pos, s);
-
-        } catch (Exception e2) {
-            throw new DOS2BinaryException(filename, "Decompression failed", pos);
-
-        }
-    }
+                    length = getEliasGamma(lsb & 1) + 1;
+                    op = copy(output, outputOffset, op, opLimit, lastOffset, length);
 
-    private int getEliasGamma(MiniBitStream bs) {
-
-        int value = 1;
-        boolean b;
-        boolean c;
+                } while (getBit() == 1);
+            }
 
-        while (!(b = bs.getNextBit())) {
-            value = value << 1 | ((c = bs.getNextBit()) ? 1 : 0);
+            this.source = null;
+            sourceEnd = sourcePos;
+            return op - outputOffset;
         }
 
-        return value;
-    }
-
-    private static class MiniBitStream {
-
-        private final int[] fileData;
-        private int bitsMask;
-        private int position;
-        private int latchedByte;
-        private boolean backTrack;
-        private int lastByte;
-
-        protected MiniBitStream(int[] fileData, int position) {
-            this.fileData = fileData;
-            this.position = position;
-            this.latchedByte = -1;
-            this.bitsMask = 0;
-            this.backTrack = false;
-            this.lastByte = -1;
-
+        private int copy(byte[] output, int outputOffset, int op, int opLimit, int offset, int length) throws DOS2BinaryException {
+            if (offset > op - outputOffset) {
+                throw new DOS2BinaryException(filename, "Compressed data refer before start of decompressed data", sourcePos + offsetBase);
+            }
+            if (length > opLimit - op) {
+                throw overflow(filename, sourcePos);
+            }
+            copyMatch(output, op, offset, length);
+            return op + length;
         }
 
-        protected int getNextByte() {
-
-            int val = fileData[position];
-            position++;
-            lastByte = val;
-            return val;
-        }
+        /**
+         * Get interlaced Elias gamma code
+         *
+         * @param firstBit First bit of the code, already read
+         */
+        private int getEliasGamma(int firstBit) throws DOS2BinaryException {
 
-        protected boolean getNextBit() {
+            int value = 1;
+            int bit = firstBit;
 
-            if (backTrack) {
-                backTrack = false;
-                return (lastByte & 1) == 1;
-            }
-            if (bitsMask == 0) {
-                latchedByte = getNextByte();
-                bitsMask = 128;
+            while (bit == 0) {
+                value = (value << 1) | getBit();
+                if (value > MAX_DECOMPRESSED_SIZE) {
+                    throw new DOS2BinaryException(filename, "Decompression failed", sourcePos + offsetBase);
+                }
+                bit = getBit();
             }
 
-            boolean b = ((latchedByte & bitsMask) == bitsMask);
-            bitsMask = bitsMask >> 1;
-
-            return b;
+            return value;
         }
 
-        protected int getPosition() {
-            return position;
+        private int getBit() throws DOS2BinaryException {
+            if (bits == BITS_EMPTY) {
+                bits = (getByte() << 24) | 0x00_80_00_00;
+            }
+            int bit = bits >>> 31;
+            bits <<= 1;
+            return bit;
         }
 
-        protected void backTrack() {
-            backTrack = true;
+        private int getByte() throws DOS2BinaryException {
+            if (sourcePos >= sourceLimit) {
+                throw truncated(filename, sourcePos);
+            }
+            return source.get(sourcePos++) & 0xFF;
         }
-
     }
 
-    private final int ZX0_LITERAL = 1;
-    private final int ZX0_COPY_FROM_LAST = 2;
-    private final int ZX0_COPY_FROM_NEW = 3;
-    private final int ZX0_EOF = 4;
+    ResultCrate processAPlib(ByteBuffer fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
 
-    ResultCrate processAPlib(int[] fileData, int pos, int firstAddress, int rba, String filename) throws DOS2BinaryException {
+        /*Decompress the data to the scratch buffer*/
+        byte[] output = getScratch();
+        int length = decompressAPlib(fileData, pos, output, 0, MAX_DECOMPRESSED_SIZE - firstAddress, filename);
 
-        int originalPos = pos;
+        /*Now we can construct a segment and add it to the binary load file*/
+        ByteBuffer rawData = DTBUtils.getView(fileData, pos, sourceEnd - pos);
+        ByteBuffer decompressedData = ByteBuffer.wrap(Arrays.copyOf(output, length));
 
-        try {
+        Segment s = new Segment(firstAddress, rawData, rba, decompressedData, COMPRESS_APLIB);
+        return new ResultCrate(sourceEnd, s);
 
-            ApDecomp dc = new ApDecomp(fileData, pos);
-            int newPos = dc.depack();
-            int[] rawData = new int[newPos - originalPos];
-            System.arraycopy(fileData, originalPos, rawData, 0, rawData.length);
-            Segment s = new Segment(firstAddress, rawData, rba, new int[0],COMPRESS_APLIB);
-            return new ResultCrate(newPos, s);
-        } catch (Exception e2) {
-            throw new DOS2BinaryException(filename, "Decompression failed", pos);
-        }
+    }
 
+    /**
+     * Decompress aPLib stream to a caller-supplied buffer. No memory is
+     * allocated. The stream ends with a short match of zero offset. Position
+     * after the stream is available from getSourceEnd()
+     *
+     * @param source Source data
+     * @param pos Position of the first byte of the stream
+     * @param output Output buffer
+     * @param outputOffset Offset of the first output byte
+     * @param outputLength Maximum number of output bytes
+     * @param filename File name used in error messages
+     * @return Number of decompressed bytes
+     * @throws DOS2BinaryException When the stream is corrupt or does not fit
+     * to the output buffer
+     */
+    public int decompressAPlib(ByteBuffer source, int pos, byte[] output, int outputOffset, int outputLength, String filename) throws DOS2BinaryException {
+        if (apDecomp == null) {
+            apDecomp = new ApDecomp();
+        }
+        return apDecomp.depack(source, pos, output, outputOffset, outputLength, filename);
     }
 
-    class ApDecomp {
+    /**
+     * aPLib decompressor, reusable
+     */
+    private ApDecomp apDecomp;
 
+    class ApDecomp {
 
-        int[] sourceData;
+        ByteBuffer sourceData;
         int sourcePos;
+        int sourceLimit;
         int tag;
         int bitcount;
-        public ApDecomp(int[] sourceData, int sourcePos) {
-            this.sourceData = sourceData;
-            this.sourcePos = sourcePos;
-        }
+        String filename;
 
-        private int getBit() {
+        private int getBit() throws DOS2BinaryException {
 
             int bit;
 
             /* check if tag is empty */
             if ((bitcount--) == 0) {
                 /* load next tag */
-                tag = sourceData[sourcePos++];
+                tag = getByte();
                 bitcount = 7;
             }
 
@@ -317,32 +518,62 @@ public class HybridDecompression {
             return bit;
         }
 
-        int getGamma() {
+        int getGamma() throws DOS2BinaryException {
             int result = 1;
 
             /* input gamma2-encoded bits */
             do {
                 result = (result << 1) + getBit();
+                if (result > MAX_DECOMPRESSED_SIZE) {
+                    throw new DOS2BinaryException(filename, "Decompression failed", sourcePos + offsetBase);
+                }
             } while (getBit() != 0);
 
             return result;
         }
 
-        int depack() {
+        private int getByte() throws DOS2BinaryException {
+            if (sourcePos >= sourceLimit) {
+                throw truncated(filename, sourcePos);
+            }
+            return sourceData.get(sourcePos++) & 0xFF;
+        }
+
+        private int copy(byte[] output, int outputOffset, int op, int opLimit, int offs, int len) throws DOS2BinaryException {
+            if (offs <= 0 || offs > op - outputOffset) {
+                throw new DOS2BinaryException(filename, "Compressed data refer before start of decompressed data", sourcePos + offsetBase);
+            }
+            if (len > opLimit - op) {
+                throw overflow(filename, sourcePos);
+            }
+            copyMatch(output, op, offs, len);
+            return op + len;
+        }
+
+        int depack(ByteBuffer source, int pos, byte[] output, int outputOffset, int outputLength, String filename) throws DOS2BinaryException {
             int offs, len, r0, lwm;
-            int done;
             int i;
+
+            this.sourceData = source;
+            this.sourcePos = pos;
+            this.sourceLimit = source.limit();
+            this.filename = filename;
             bitcount = 0;
 
+            int op = outputOffset;
+            int opLimit = outputOffset + outputLength;
+
             r0 = -1;
             lwm = 0;
-            done = 0;
 
             /* first byte verbatim */
-            sourcePos++;
+            if (op >= opLimit) {
+                throw overflow(filename, sourcePos);
+            }
+            output[op++] = (byte) getByte();
 
             /* main decompression loop */
-            while (done == 0) {
+            while (true) {
                 if (getBit() == 1) {
                     if (getBit() == 1) {
                         if (getBit() == 1) {
@@ -352,27 +583,29 @@ public class HybridDecompression {
                                 offs = (offs << 1) + getBit();
                             }
 
+                            /* single byte, either copied or zero */
                             if (offs != 0) {
-
+                                op = copy(output, outputOffset, op, opLimit, offs, 1);
                             } else {
-
+                                if (op >= opLimit) {
+                                    throw overflow(filename, sourcePos);
+                                }
+                                output[op++] = 0;
                             }
 
                             lwm = 0;
                         } else {
-                            offs = sourceData[sourcePos];
-                            sourcePos++;
+                            offs = getByte();
 
                             len = 2 + (offs & 0x0001);
 
                             offs >>= 1;
 
+                            /* zero offset terminates the stream */
                             if (offs != 0) {
-                                for (; len != 0; len--) {
-
-                                }
+                                op = copy(output, outputOffset, op, opLimit, offs, len);
                             } else {
-                                done = 1;
+                                break;
                             }
 
                             r0 = offs;
@@ -386,9 +619,7 @@ public class HybridDecompression {
 
                             len = getGamma();
 
-                            for (; len != 0; len--) {
-
-                            }
+                            op = copy(output, outputOffset, op, opLimit, offs, len);
                         } else {
                             if (lwm == 0) {
                                 offs -= 3;
@@ -397,8 +628,7 @@ public class HybridDecompression {
                             }
 
                             offs <<= 8;
-                            offs += sourceData[sourcePos];
-                            sourcePos++;
+                            offs += getByte();
 
                             len = getGamma();
 
@@ -412,9 +642,7 @@ public class HybridDecompression {
                                 len += 2;
                             }
 
-                            for (; len != 0; len--) {
-
-                            }
+                            op = copy(output, outputOffset, op, opLimit, offs, len);
 
                             r0 = offs;
                         }
@@ -422,12 +650,17 @@ public class HybridDecompression {
                         lwm = 1;
                     }
                 } else {
-                    sourcePos++;
+                    if (op >= opLimit) {
+                        throw overflow(filename, sourcePos);
+                    }
+                    output[op++] = (byte) getByte();
                     lwm = 0;
                 }
             }
 
-            return sourcePos;
+            this.sourceData = null;
+            sourceEnd = sourcePos;
+            return op - outputOffset;
         }
 
     }
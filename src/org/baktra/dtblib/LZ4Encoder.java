@@ -0,0 +1,192 @@
+package org.baktra.dtblib;
+
+import java.util.Arrays;
+
+/**
+ * LZ4 block compressor producing streams accepted by
+ * HybridDecompression.decompressLZ4(). Matches are found with hash chains,
+ * one step lazy matching is used. The stream ends with a literal run followed
+ * by a zero match offset. An instance is not thread-safe, but can be reused
+ */
+final class LZ4Encoder {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65_535;
+    private static final int HASH_BITS = 15;
+
+    /**
+     * Maximum number of candidates examined for one position
+     */
+    private final int maxChain;
+
+    /**
+     * Most recent position for each hash value
+     */
+    private final int[] head;
+
+    /**
+     * Previous position with the same hash value, for each position
+     */
+    private int[] chain;
+
+    /**
+     * Offset of the match found by the last findMatch() call
+     */
+    private int matchOffset;
+
+    LZ4Encoder(int maxChain) {
+        this.maxChain = maxChain;
+        this.head = new int[1 << HASH_BITS];
+        this.chain = new int[0];
+    }
+
+    /**
+     * Get maximum length of a stream produced from data of given length
+     *
+     * @param length Data length
+     * @return Maximum stream length
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress data
+     *
+     * @param src Source array
+     * @param off Offset of the first byte
+     * @param len Number of bytes
+     * @return LZ4 stream
+     */
+    byte[] compress(byte[] src, int off, int len) {
+
+        Arrays.fill(head, -1);
+        if (chain.length < len) {
+            chain = new int[len];
+        }
+
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int dp = 0;
+        int anchor = 0;
+        int p = 0;
+        int limit = len - MIN_MATCH;
+
+        while (p <= limit) {
+
+            int len1 = findMatch(src, off, len, p);
+            int off1 = matchOffset;
+            insert(src, off, p);
+
+            if (len1 < MIN_MATCH) {
+                p++;
+                continue;
+            }
+
+            /*Lazy matching - prefer a longer match starting one byte later*/
+            while (p + 1 <= limit) {
+                int len2 = findMatch(src, off, len, p + 1);
+                if (len2 <= len1) {
+                    break;
+                }
+                p++;
+                insert(src, off, p);
+                len1 = len2;
+                off1 = matchOffset;
+            }
+
+            dp = putSequence(dst, dp, src, off + anchor, p - anchor, off1, len1);
+
+            /*Positions within the match are added to the chains*/
+            int end = p + len1;
+            for (int i = p + 1; i < end && i <= limit; i++) {
+                insert(src, off, i);
+            }
+            p = end;
+            anchor = p;
+        }
+
+        /*Last literal run, terminated by zero offset*/
+        dp = putSequence(dst, dp, src, off + anchor, len - anchor, 0, 0);
+
+        return Arrays.copyOf(dst, dp);
+    }
+
+    private static int hash(byte[] src, int index) {
+        int v = (src[index] & 0xFF) | ((src[index + 1] & 0xFF) << 8) | ((src[index + 2] & 0xFF) << 16) | ((src[index + 3] & 0xFF) << 24);
+        return (v * -1_640_531_535) >>> (32 - HASH_BITS);
+    }
+
+    private void insert(byte[] src, int off, int p) {
+        int h = hash(src, off + p);
+        chain[p] = head[h];
+        head[h] = p;
+    }
+
+    /**
+     * Find the longest match for a position
+     *
+     * @return Match length, 0 when there is no match. Offset is stored in
+     * matchOffset
+     */
+    private int findMatch(byte[] src, int off, int len, int p) {
+
+        int best = 0;
+        int maxLength = len - p;
+        int candidate = head[hash(src, off + p)];
+        int depth = maxChain;
+
+        while (candidate >= 0 && p - candidate <= MAX_OFFSET && depth-- > 0) {
+
+            /*Quick check of the byte that would make the match longer*/
+            if (src[off + candidate + best] == src[off + p + best]) {
+                int l = 0;
+                while (l < maxLength && src[off + candidate + l] == src[off + p + l]) {
+                    l++;
+                }
+                if (l > best) {
+                    best = l;
+                    matchOffset = p - candidate;
+                    if (l == maxLength) {
+                        break;
+                    }
+                }
+            }
+            candidate = chain[candidate];
+        }
+
+        return best;
+    }
+
+    /**
+     * Put one sequence - literal run and match. Zero offset ends the stream
+     */
+    private static int putSequence(byte[] dst, int dp, byte[] src, int litPos, int litLen, int offset, int matchLen) {
+
+        int ml = (offset == 0) ? 0 : matchLen - MIN_MATCH;
+        dst[dp++] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(ml, 15));
+
+        if (litLen >= 15) {
+            dp = putLength(dst, dp, litLen - 15);
+        }
+        System.arraycopy(src, litPos, dst, dp, litLen);
+        dp += litLen;
+
+        dst[dp++] = (byte) (offset & 0xFF);
+        dst[dp++] = (byte) (offset >>> 8);
+
+        if (offset != 0 && ml >= 15) {
+            dp = putLength(dst, dp, ml - 15);
+        }
+        return dp;
+    }
+
+    private static int putLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+}
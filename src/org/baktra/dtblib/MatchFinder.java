@@ -0,0 +1,166 @@
+package org.baktra.dtblib;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Match search for the compressors. Hash chains over 2 byte prefixes are
+ * built first, then the positions are searched in parallel. For each
+ * position, candidates are ordered by increasing offset and each one is
+ * longer than the previous one, so the nearest offset for every match length
+ * is known. Candidate lengths are capped at the nice length. An instance is
+ * not thread-safe, but can be reused
+ */
+final class MatchFinder {
+
+    /**
+     * Maximum number of candidates kept for one position
+     */
+    static final int MAX_CANDIDATES = 16;
+
+    /**
+     * Number of positions searched by one task
+     */
+    private static final int BLOCK_SIZE = 1_024;
+
+    private final int maxOffset;
+    private final int maxChain;
+    private final int niceLength;
+
+    /*Hash chains over 2 byte prefixes*/
+    private final int[] head = new int[65_536];
+    private int[] prev = new int[0];
+
+    /*Candidates - offsets and lengths*/
+    private int[] candOffset = new int[0];
+    private int[] candLength = new int[0];
+    private byte[] candCount = new byte[0];
+
+    /**
+     * Create new match finder
+     *
+     * @param maxOffset Maximum match offset
+     * @param maxChain Maximum number of candidates examined for one position
+     * @param niceLength Candidates are not made longer than this
+     */
+    MatchFinder(int maxOffset, int maxChain, int niceLength) {
+        this.maxOffset = maxOffset;
+        this.maxChain = maxChain;
+        this.niceLength = niceLength;
+    }
+
+    /**
+     * Find candidates for all positions
+     *
+     * @param data Data
+     * @param len Number of bytes
+     * @param deadline Value of System.nanoTime() after which the remaining
+     * positions are searched with the fast chain limit
+     * @param fastMaxChain Chain limit after the deadline
+     */
+    void find(byte[] data, int len, long deadline, int fastMaxChain) {
+
+        if (prev.length < len) {
+            prev = new int[len];
+            candCount = new byte[len];
+            candOffset = new int[len * MAX_CANDIDATES];
+            candLength = new int[len * MAX_CANDIDATES];
+        }
+
+        Arrays.fill(head, -1);
+        for (int i = 0; i + 1 < len; i++) {
+            int key = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+            prev[i] = head[key];
+            head[key] = i;
+        }
+
+        int blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int chainLimit = (System.nanoTime() > deadline) ? Math.min(maxChain, fastMaxChain) : maxChain;
+            int end = Math.min(len, (b + 1) * BLOCK_SIZE);
+            for (int i = b * BLOCK_SIZE; i < end; i++) {
+                find(data, len, i, chainLimit);
+            }
+        });
+    }
+
+    private void find(byte[] data, int len, int i, int chainLimit) {
+
+        int count = 0;
+        int base = i * MAX_CANDIDATES;
+        int cap = Math.min(niceLength, len - i);
+        int best = 1;
+        int depth = chainLimit;
+        int c = (i + 1 < len) ? prev[i] : -1;
+
+        while (c >= 0 && i - c <= maxOffset && depth-- > 0 && count < MAX_CANDIDATES) {
+
+            /*Only candidates longer than the nearer ones are useful*/
+            if (best < cap && data[c + best] == data[i + best]) {
+                int l = 2;
+                while (l < cap && data[c + l] == data[i + l]) {
+                    l++;
+                }
+                if (l > best) {
+                    best = l;
+                    candOffset[base + count] = i - c;
+                    candLength[base + count] = l;
+                    count++;
+                    if (l == cap) {
+                        break;
+                    }
+                }
+            }
+            c = prev[c];
+        }
+
+        candCount[i] = (byte) count;
+    }
+
+    /**
+     *
+     * @param i Position
+     * @return Number of candidates for the position
+     */
+    int getCount(int i) {
+        return candCount[i];
+    }
+
+    /**
+     *
+     * @param i Position
+     * @param k Index of the candidate
+     * @return Offset of the candidate
+     */
+    int getOffset(int i, int k) {
+        return candOffset[i * MAX_CANDIDATES + k];
+    }
+
+    /**
+     *
+     * @param i Position
+     * @param k Index of the candidate
+     * @return Length of the candidate, at most the nice length
+     */
+    int getLength(int i, int k) {
+        return candLength[i * MAX_CANDIDATES + k];
+    }
+
+    /**
+     * Get length of a match
+     *
+     * @param data Data
+     * @param len Number of bytes
+     * @param i Position
+     * @param offset Offset
+     * @param l Length already known to match
+     * @return Match length
+     */
+    static int extend(byte[] data, int len, int i, int offset, int l) {
+        while (i + l < len && data[i + l] == data[i + l - offset]) {
+            l++;
+        }
+        return l;
+    }
+
+}
@@ -0,0 +1,205 @@
+package org.baktra.dtblib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State of the 64 KB memory at one point of loading of a binary file,
+ * immutable. Memory is divided to 256 pages of 256 bytes. Pages not changed
+ * between two images are the same arrays, so images of one file share most
+ * of their memory and comparing them is cheap. Memory never loaded reads as
+ * zero.
+ */
+public final class MemoryImage {
+
+    /**
+     * Number of bytes of a page
+     */
+    public static final int PAGE_SIZE = 256;
+
+    /**
+     * Number of pages
+     */
+    public static final int PAGE_COUNT = 256;
+
+    /**
+     * Point of loading the image belongs to
+     */
+    public enum Kind {
+        /**
+         * INIT routine is about to be called
+         */
+        INIT,
+        /**
+         * Loading is complete, the program is about to be run
+         */
+        RUN
+    }
+
+    private final Kind kind;
+
+    /**
+     * Index of the bunch of getInitSlicedSegmentBunches() loaded last
+     */
+    private final int bunchIndex;
+
+    /**
+     * Address of the INIT routine called, -1 for the RUN image
+     */
+    private final int initVector;
+
+    /**
+     * Content of the RUN vector, -1 when no segment has loaded it yet
+     */
+    private final int runVector;
+
+    /**
+     * Pages, null for pages never loaded. Never modified
+     */
+    private final byte[][] pages;
+
+    /**
+     * Memory loaded so far
+     */
+    private final MemoryRangeSet loaded;
+
+    MemoryImage(Kind kind, int bunchIndex, int initVector, int runVector, byte[][] pages, MemoryRangeSet loaded) {
+        this.kind = kind;
+        this.bunchIndex = bunchIndex;
+        this.initVector = initVector;
+        this.runVector = runVector;
+        this.pages = pages;
+        this.loaded = loaded;
+    }
+
+    /**
+     *
+     * @return Point of loading the image belongs to
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     *
+     * @return Index of the bunch of getInitSlicedSegmentBunches() loaded
+     * last
+     */
+    public int getBunchIndex() {
+        return bunchIndex;
+    }
+
+    /**
+     *
+     * @return Address of the INIT routine called, -1 for the RUN image
+     */
+    public int getInitVector() {
+        return initVector;
+    }
+
+    /**
+     *
+     * @return Content of the RUN vector, -1 when no segment has loaded it
+     */
+    public int getRunVector() {
+        return runVector;
+    }
+
+    /**
+     *
+     * @return Memory loaded so far
+     */
+    public MemoryRangeSet getLoadedMemory() {
+        return loaded;
+    }
+
+    /**
+     * Get byte of memory
+     *
+     * @param address Address
+     * @return Unsigned byte, 0 for memory never loaded
+     */
+    public int getByte(int address) {
+        byte[] page = pages[address >>> 8];
+        return (page == null) ? 0 : page[address & 0xFF] & 0xFF;
+    }
+
+    /**
+     * Get read-only view of a page
+     *
+     * @param index Page index
+     * @return Buffer with the 256 bytes of the page
+     */
+    public ByteBuffer getPage(int index) {
+        byte[] page = pages[index];
+        return ByteBuffer.wrap((page == null) ? new byte[PAGE_SIZE] : page).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the whole memory
+     *
+     * @return Array of 65536 bytes
+     */
+    public byte[] toByteArray() {
+        byte[] memory = new byte[PAGE_COUNT * PAGE_SIZE];
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            if (pages[i] != null) {
+                System.arraycopy(pages[i], 0, memory, i * PAGE_SIZE, PAGE_SIZE);
+            }
+        }
+        return memory;
+    }
+
+    /**
+     * Test whether a page is the same array as in another image
+     *
+     * @param other Other image
+     * @param index Page index
+     * @return true when the page is shared
+     */
+    public boolean sharesPage(MemoryImage other, int index) {
+        return pages[index] == other.pages[index];
+    }
+
+    /**
+     * Get pages whose content differs from another image. Shared pages are
+     * skipped without comparing the content
+     *
+     * @param other Other image
+     * @return Sorted page indexes
+     */
+    public int[] getChangedPages(MemoryImage other) {
+        QuickIntegerVector changed = new QuickIntegerVector(16);
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            byte[] a = pages[i];
+            byte[] b = other.pages[i];
+            if (a == b) {
+                continue;
+            }
+            for (int k = 0; k < PAGE_SIZE; k++) {
+                int va = (a == null) ? 0 : a[k];
+                int vb = (b == null) ? 0 : b[k];
+                if (va != vb) {
+                    changed.add(i);
+                    break;
+                }
+            }
+        }
+        return changed.toArray();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(kind);
+        sb.append(" after bunch ");
+        sb.append(bunchIndex);
+        if (kind == Kind.INIT) {
+            sb.append(String.format(" INIT %05d [%04X]", initVector, initVector));
+        }
+        if (runVector >= 0) {
+            sb.append(String.format(" RUN %05d [%04X]", runVector, runVector));
+        }
+        return sb.toString();
+    }
+
+}
@@ -10,8 +10,59 @@ public class MemoryRange {
     public final int last;
     
     public MemoryRange(int first,int last) {
+        if (last < first) {
+            throw new IllegalArgumentException("Last address of a memory range must not be lower than the first address");
+        }
         this.first=first;
         this.last=last;
     }
     
+    /**
+     * Get number of addresses in the range
+     *
+     * @return Length
+     */
+    public int getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Test whether the range contains an address
+     *
+     * @param address Address
+     * @return True when the address is within the range
+     */
+    public boolean contains(int address) {
+        return address >= first && address <= last;
+    }
+
+    /**
+     * Test whether the range shares at least one address with another range
+     *
+     * @param other Other range
+     * @return True when the ranges overlap
+     */
+    public boolean overlaps(MemoryRange other) {
+        return first <= other.last && other.first <= last;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MemoryRange)) {
+            return false;
+        }
+        MemoryRange r = (MemoryRange) o;
+        return first == r.first && last == r.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return first * 65_537 + last;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%05d-%05d $%04X-$%04X", first, last, first, last);
+    }
+
 }
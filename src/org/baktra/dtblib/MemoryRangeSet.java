@@ -0,0 +1,464 @@
+package org.baktra.dtblib;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of memory addresses represented as sorted, disjoint memory ranges,
+ * immutable. Adjacent and overlapping ranges are merged. Queries use binary
+ * search, set operations take time proportional to the number of ranges
+ */
+public class MemoryRangeSet implements Iterable<MemoryRange> {
+
+    /**
+     * Empty set
+     */
+    public static final MemoryRangeSet EMPTY = new MemoryRangeSet(new int[0], new int[0]);
+
+    /**
+     * First addresses of the ranges, ascending
+     */
+    private final int[] firsts;
+
+    /**
+     * Last addresses of the ranges, ascending
+     */
+    private final int[] lasts;
+
+    private MemoryRangeSet(int[] firsts, int[] lasts) {
+        this.firsts = firsts;
+        this.lasts = lasts;
+    }
+
+    /**
+     * Create set covering all addresses of the given ranges
+     *
+     * @param ranges Ranges, in any order, possibly overlapping
+     * @return Set
+     */
+    public static MemoryRangeSet of(MemoryRange... ranges) {
+        return of(Arrays.asList(ranges));
+    }
+
+    /**
+     * Create set covering all addresses of the given ranges
+     *
+     * @param ranges Ranges, in any order, possibly overlapping
+     * @return Set
+     */
+    public static MemoryRangeSet of(Collection<MemoryRange> ranges) {
+
+        MemoryRange[] sorted = ranges.toArray(new MemoryRange[ranges.size()]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.first, b.first));
+
+        int[] f = new int[sorted.length];
+        int[] l = new int[sorted.length];
+        int count = 0;
+
+        for (MemoryRange r : sorted) {
+            /*Merge with the previous range when overlapping or adjacent*/
+            if (count > 0 && r.first <= l[count - 1] + 1) {
+                l[count - 1] = Math.max(l[count - 1], r.last);
+            }
+            else {
+                f[count] = r.first;
+                l[count] = r.last;
+                count++;
+            }
+        }
+
+        return create(f, l, count);
+    }
+
+    private static MemoryRangeSet create(int[] f, int[] l, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        return new MemoryRangeSet(Arrays.copyOf(f, count), Arrays.copyOf(l, count));
+    }
+
+    /**
+     * Find the first range that overlaps a range preceding it in the array
+     *
+     * @param ranges Ranges
+     * @return Lowest index of a range that overlaps a range with lower
+     * index, or -1 when no ranges overlap
+     */
+    public static int findOverlap(MemoryRange[] ranges) {
+
+        int[] firsts = new int[ranges.length];
+        int[] lasts = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            firsts[i] = ranges[i].first;
+            lasts[i] = ranges[i].last;
+        }
+        return findOverlap(firsts, lasts, new long[ranges.length], ranges.length);
+    }
+
+    /**
+     * Find the first range that overlaps a range preceding it in the arrays.
+     * This is the range that hits occupied memory first when the ranges are
+     * placed in order. No objects are allocated
+     *
+     * @param firsts First addresses of the ranges
+     * @param lasts Last addresses of the ranges, ranges with last address
+     * lower than first address are empty
+     * @param keys Work array with at least count elements
+     * @param count Number of ranges
+     * @return Lowest index of a range that overlaps a range with lower
+     * index, or -1 when no ranges overlap
+     */
+    static int findOverlap(int[] firsts, int[] lasts, long[] keys, int count) {
+
+        /*Sort indexes by first address*/
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) firsts[i] << 32) | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        if (!hasOverlap(firsts, lasts, keys, count, count)) {
+            return -1;
+        }
+
+        /*Once the first ranges overlap, any longer prefix overlaps too, so
+        the shortest overlapping prefix is found by bisection*/
+        int lo = 2;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (hasOverlap(firsts, lasts, keys, count, mid)) {
+                hi = mid;
+            }
+            else {
+                lo = mid + 1;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Check whether the ranges with index lower than the limit overlap. Each
+     * range must begin after the end of all ranges that begin before it
+     */
+    private static boolean hasOverlap(int[] firsts, int[] lasts, long[] keys, int count, int limit) {
+
+        int maxLast = Integer.MIN_VALUE;
+        boolean seen = false;
+        for (int k = 0; k < count; k++) {
+            int i = (int) keys[k];
+            if (i >= limit || lasts[i] < firsts[i]) {
+                continue;
+            }
+            if (seen && firsts[i] <= maxLast) {
+                return true;
+            }
+            if (!seen || lasts[i] > maxLast) {
+                maxLast = lasts[i];
+            }
+            seen = true;
+        }
+        return false;
+    }
+
+    /**
+     * Get number of disjoint ranges
+     *
+     * @return Number of ranges
+     */
+    public int size() {
+        return firsts.length;
+    }
+
+    /**
+     *
+     * @return True when the set contains no addresses
+     */
+    public boolean isEmpty() {
+        return firsts.length == 0;
+    }
+
+    /**
+     * Get range
+     *
+     * @param index Index of the range, ranges are ordered by address
+     * @return Range
+     */
+    public MemoryRange get(int index) {
+        return new MemoryRange(firsts[index], lasts[index]);
+    }
+
+    /**
+     * Get all ranges
+     *
+     * @return Unmodifiable list of ranges ordered by address
+     */
+    public List<MemoryRange> getRanges() {
+        return new AbstractList<MemoryRange>() {
+            @Override
+            public MemoryRange get(int index) {
+                return MemoryRangeSet.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return MemoryRangeSet.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MemoryRange> iterator() {
+        return getRanges().iterator();
+    }
+
+    /**
+     *
+     * @return Lowest address in the set
+     * @throws NoSuchElementException When the set is empty
+     */
+    public int getFirstAddress() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return firsts[0];
+    }
+
+    /**
+     *
+     * @return Highest address in the set
+     * @throws NoSuchElementException When the set is empty
+     */
+    public int getLastAddress() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return lasts[lasts.length - 1];
+    }
+
+    /**
+     * Get number of addresses in the set
+     *
+     * @return Number of addresses
+     */
+    public long getTotalLength() {
+        long total = 0;
+        for (int i = 0; i < firsts.length; i++) {
+            total += lasts[i] - firsts[i] + 1;
+        }
+        return total;
+    }
+
+    /**
+     * Find the range with the highest first address not greater than the
+     * address
+     *
+     * @return Index of the range or -1
+     */
+    private int floorIndex(int address) {
+        int lo = 0;
+        int hi = firsts.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firsts[mid] <= address) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @param address Address
+     * @return True when the set contains the address
+     */
+    public boolean contains(int address) {
+        int i = floorIndex(address);
+        return i != -1 && lasts[i] >= address;
+    }
+
+    /**
+     * Test whether the set contains at least one address of a memory area
+     *
+     * @param first First address of the area
+     * @param last Last address of the area
+     * @return True when the set and the area overlap
+     */
+    public boolean overlaps(int first, int last) {
+        /*The last range beginning before the end of the area must reach it*/
+        int i = floorIndex(last);
+        return i != -1 && lasts[i] >= first;
+    }
+
+    /**
+     * Test whether the set contains all addresses of a memory area
+     *
+     * @param first First address of the area
+     * @param last Last address of the area
+     * @return True when the set covers the area
+     */
+    public boolean covers(int first, int last) {
+        int i = floorIndex(first);
+        return i != -1 && lasts[i] >= last;
+    }
+
+    /**
+     * Get union of two sets
+     *
+     * @param other Other set
+     * @return Set with addresses contained in any of the sets
+     */
+    public MemoryRangeSet union(MemoryRangeSet other) {
+
+        int n = firsts.length + other.firsts.length;
+        int[] f = new int[n];
+        int[] l = new int[n];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < firsts.length || j < other.firsts.length) {
+
+            /*Take the range that begins first*/
+            int rf;
+            int rl;
+            if (j == other.firsts.length || (i < firsts.length && firsts[i] <= other.firsts[j])) {
+                rf = firsts[i];
+                rl = lasts[i];
+                i++;
+            }
+            else {
+                rf = other.firsts[j];
+                rl = other.lasts[j];
+                j++;
+            }
+
+            if (count > 0 && rf <= l[count - 1] + 1) {
+                l[count - 1] = Math.max(l[count - 1], rl);
+            }
+            else {
+                f[count] = rf;
+                l[count] = rl;
+                count++;
+            }
+        }
+
+        return create(f, l, count);
+    }
+
+    /**
+     * Get intersection of two sets
+     *
+     * @param other Other set
+     * @return Set with addresses contained in both sets
+     */
+    public MemoryRangeSet intersection(MemoryRangeSet other) {
+
+        int n = firsts.length + other.firsts.length;
+        int[] f = new int[n];
+        int[] l = new int[n];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < firsts.length && j < other.firsts.length) {
+
+            int rf = Math.max(firsts[i], other.firsts[j]);
+            int rl = Math.min(lasts[i], other.lasts[j]);
+            if (rf <= rl) {
+                f[count] = rf;
+                l[count] = rl;
+                count++;
+            }
+
+            /*Advance the range that ends first*/
+            if (lasts[i] < other.lasts[j]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+
+        return create(f, l, count);
+    }
+
+    /**
+     * Get addresses of a memory area that are not in the set
+     *
+     * @param first First address of the area
+     * @param last Last address of the area
+     * @return Set with the gaps
+     */
+    public MemoryRangeSet gaps(int first, int last) {
+
+        int[] f = new int[firsts.length + 1];
+        int[] l = new int[firsts.length + 1];
+        int count = 0;
+        int next = first;
+
+        int i = Math.max(floorIndex(first), 0);
+        for (; i < firsts.length && firsts[i] <= last && next <= last; i++) {
+            if (firsts[i] > next) {
+                f[count] = next;
+                l[count] = firsts[i] - 1;
+                count++;
+            }
+            next = Math.max(next, lasts[i] + 1);
+        }
+        if (next <= last) {
+            f[count] = next;
+            l[count] = last;
+            count++;
+        }
+
+        return create(f, l, count);
+    }
+
+    /**
+     * Get gaps between the lowest and the highest address of the set
+     *
+     * @return Set with the gaps
+     */
+    public MemoryRangeSet getGaps() {
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        return gaps(getFirstAddress(), getLastAddress());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MemoryRangeSet)) {
+            return false;
+        }
+        MemoryRangeSet s = (MemoryRangeSet) o;
+        return Arrays.equals(firsts, s.firsts) && Arrays.equals(lasts, s.lasts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(firsts) + Arrays.hashCode(lasts);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < firsts.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(get(i).toString());
+        }
+        return sb.toString();
+    }
+
+}
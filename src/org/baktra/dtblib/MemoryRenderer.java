@@ -0,0 +1,122 @@
+package org.baktra.dtblib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rendering of the memory state during loading of a binary file. Segments are
+ * loaded bunch by bunch as in getInitSlicedSegmentBunches(). An image is
+ * taken each time an INIT routine is about to be called and once more when
+ * loading is complete and the program is about to be run. Compressed
+ * segments are rendered decompressed.
+ * <p>
+ * Images share pages copy-on-write. Taking an image copies the page table
+ * only, a page is copied when it is first written after the image is taken.
+ * The memory of all images of a file is therefore proportional to the pages
+ * written, not to the number of images.
+ */
+public final class MemoryRenderer {
+
+    private MemoryRenderer() {
+    }
+
+    /**
+     * Render memory images of a binary file
+     *
+     * @param binary Analyzed binary file, not modified
+     * @return Images in order of loading. The last image is the RUN image
+     * @throws DOS2BinaryProcessingException When a compressed segment has not
+     * been decompressed
+     */
+    public static List<MemoryImage> render(DOS2Binary binary) throws DOS2BinaryProcessingException {
+
+        List<ArrayList<Segment>> bunches = binary.getInitSlicedSegmentBunches();
+        ArrayList<MemoryImage> images = new ArrayList<>(bunches.size() + 1);
+
+        byte[][] pages = new byte[MemoryImage.PAGE_COUNT][];
+        /*Pages not shared with any image yet*/
+        boolean[] owned = new boolean[MemoryImage.PAGE_COUNT];
+        MemoryRangeSet loaded = MemoryRangeSet.EMPTY;
+
+        for (int b = 0; b < bunches.size(); b++) {
+            ArrayList<Segment> bunch = bunches.get(b);
+            ArrayList<MemoryRange> ranges = new ArrayList<>(bunch.size());
+
+            for (Segment s : bunch) {
+                ByteBuffer d;
+                if (s.isCompressed()) {
+                    d = s.getDecompressedDataBuffer();
+                    if (d == null) {
+                        throw new DOS2BinaryProcessingException("Unable to render memory. Compressed segment has not been decompressed. Segment: " + s.toString());
+                    }
+                }
+                else {
+                    d = s.getDataBuffer();
+                }
+
+                int length = Math.min(d.remaining(), 65_536 - s.getFirstAddress());
+                if (length <= 0) {
+                    continue;
+                }
+                write(pages, owned, s.getFirstAddress(), d, length);
+                ranges.add(new MemoryRange(s.getFirstAddress(), s.getFirstAddress() + length - 1));
+            }
+
+            loaded = loaded.union(MemoryRangeSet.of(ranges));
+
+            /*Only the last segment of a bunch can have INIT vector*/
+            Segment last = bunch.get(bunch.size() - 1);
+            if (last.hasInitVector()) {
+                images.add(takeImage(pages, owned, MemoryImage.Kind.INIT, b, getVector(pages, 738), getRunVector(pages, loaded), loaded));
+            }
+        }
+
+        images.add(takeImage(pages, owned, MemoryImage.Kind.RUN, bunches.size() - 1, -1, getRunVector(pages, loaded), loaded));
+        return images;
+    }
+
+    /**
+     * Write data to pages, copying pages shared with an image
+     */
+    private static void write(byte[][] pages, boolean[] owned, int address, ByteBuffer d, int length) {
+
+        while (length > 0) {
+            int index = address >>> 8;
+            int offset = address & 0xFF;
+            int l = Math.min(length, MemoryImage.PAGE_SIZE - offset);
+
+            if (!owned[index]) {
+                pages[index] = (pages[index] == null) ? new byte[MemoryImage.PAGE_SIZE] : pages[index].clone();
+                owned[index] = true;
+            }
+            d.get(pages[index], offset, l);
+
+            address += l;
+            length -= l;
+        }
+    }
+
+    /**
+     * Take image. All pages become shared with the image
+     */
+    private static MemoryImage takeImage(byte[][] pages, boolean[] owned, MemoryImage.Kind kind, int bunchIndex, int initVector, int runVector, MemoryRangeSet loaded) {
+        Arrays.fill(owned, false);
+        return new MemoryImage(kind, bunchIndex, initVector, runVector, pages.clone(), loaded);
+    }
+
+    private static int getRunVector(byte[][] pages, MemoryRangeSet loaded) {
+        return loaded.covers(736, 737) ? getVector(pages, 736) : -1;
+    }
+
+    private static int getVector(byte[][] pages, int address) {
+        byte[] page = pages[address >>> 8];
+        if (page == null) {
+            return 0;
+        }
+        int offset = address & 0xFF;
+        return (page[offset] & 0xFF) + 256 * (page[offset + 1] & 0xFF);
+    }
+
+}
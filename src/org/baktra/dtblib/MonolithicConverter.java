@@ -0,0 +1,355 @@
+package org.baktra.dtblib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Conversion of binary files to monolithic binary files. A monolithic binary
+ * file has one data segment with all the data and one segment with the RUN
+ * vector. INIT vectors can be replaced with code that calls the INIT
+ * routines and then jumps to the RUN address.
+ * <p>
+ * Work arrays are kept for each thread and reused, so converting a file does
+ * not allocate memory proportional to the file size, except for the output.
+ * Occupied memory is tracked as a list of ranges. One instance can be used
+ * by many threads.
+ */
+public class MonolithicConverter {
+
+    /**
+     * Length of the header and of the data segment header
+     */
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * Length of the segment with the RUN vector
+     */
+    private static final int RUN_SEGMENT_LENGTH = 6;
+
+    /**
+     * Maximum length of a monolithic binary file
+     */
+    public static final int MAX_OUTPUT_LENGTH = HEADER_LENGTH + 65_536 + RUN_SEGMENT_LENGTH;
+
+    /**
+     * Work arrays for each thread
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Generate code that replaces INIT segments
+     */
+    private final boolean extra;
+
+    /**
+     * Address of the code that replaces INIT segments
+     */
+    private final int extraCodeAddress;
+
+    /**
+     * Create new converter. INIT vectors are dropped, the RUN vector is kept
+     */
+    public MonolithicConverter() {
+        this.extra = false;
+        this.extraCodeAddress = -1;
+    }
+
+    /**
+     * Create new converter that generates code replacing INIT segments. The
+     * address is checked when a file is converted
+     *
+     * @param extraCodeAddress Address of the code that replaces INIT
+     * segments
+     */
+    public MonolithicConverter(int extraCodeAddress) {
+        this.extra = true;
+        this.extraCodeAddress = extraCodeAddress;
+    }
+
+    /**
+     * Convert binary file
+     *
+     * @param binary Analyzed binary file
+     * @return Monolithic binary file
+     * @throws DOS2BinaryProcessingException
+     */
+    public byte[] convert(DOS2Binary binary) throws DOS2BinaryProcessingException {
+        Scratch s = SCRATCH.get();
+        int length = build(binary, s);
+        return Arrays.copyOf(s.image, length);
+    }
+
+    /**
+     * Convert binary file and put the result to a buffer
+     *
+     * @param binary Analyzed binary file
+     * @param out Buffer. The result is put at the position of the buffer
+     * @return Number of bytes put
+     * @throws DOS2BinaryProcessingException
+     * @throws BufferOverflowException When the remaining space of the buffer
+     * is not sufficient. Nothing is put to the buffer
+     */
+    public int convert(DOS2Binary binary, ByteBuffer out) throws DOS2BinaryProcessingException {
+        Scratch s = SCRATCH.get();
+        int length = build(binary, s);
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        out.put(s.image, 0, length);
+        return length;
+    }
+
+    /**
+     * Convert binary file and write the result to a stream. The stream is
+     * not closed
+     *
+     * @param binary Analyzed binary file
+     * @param out Stream
+     * @return Number of bytes written
+     * @throws DOS2BinaryProcessingException
+     * @throws IOException
+     */
+    public int convert(DOS2Binary binary, OutputStream out) throws DOS2BinaryProcessingException, IOException {
+        Scratch s = SCRATCH.get();
+        int length = build(binary, s);
+        out.write(s.image, 0, length);
+        return length;
+    }
+
+    /**
+     * Convert binary file and write the result to a file. The file is
+     * replaced at once when it is complete
+     *
+     * @param binary Analyzed binary file
+     * @param outname Output file
+     * @throws DOS2BinaryProcessingException
+     * @throws IOException
+     */
+    public void convertToFile(DOS2Binary binary, String outname) throws DOS2BinaryProcessingException, IOException {
+        Scratch s = SCRATCH.get();
+        int length = build(binary, s);
+        DTBUtils.writeFile(outname, ByteBuffer.wrap(s.image, 0, length));
+    }
+
+    /**
+     * Create monolithic binary file in the image of the work arrays
+     *
+     * @return Length of the file
+     */
+    private int build(DOS2Binary binary, Scratch s) throws DOS2BinaryProcessingException {
+
+        /*Check if there is at least one segment*/
+        if (binary.getTotalSegmentCount() < 1) {
+            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. The input binary file has no segments.");
+        }
+
+        if (extra == true) {
+            /*Check range*/
+            if (extraCodeAddress < 0 || extraCodeAddress > 65_535) {
+                throw new DOS2BinaryProcessingException(("Unable to create monolithic binary file. Adddress of the code that replaces INIT segments is not valid (0-65535)"));
+            }
+            /*Check if the extra code fits*/
+            if (extraCodeAddress > 65_536 - binary.getExtraCodeForMergeLength()) {
+                throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Code that replaces INIT segments would span beyond address of 65535");
+            }
+        }
+
+        try {
+            return build(binary, s, binary.getTotalSegmentCount());
+        }
+        finally {
+            /*Do not keep the segments reachable*/
+            Arrays.fill(s.owners, null);
+        }
+    }
+
+    private int build(DOS2Binary binary, Scratch s, int segmentCount) throws DOS2BinaryProcessingException {
+
+        /*Collect the memory ranges occupied by the data. A segment with
+        vectors has at most two ranges, before and after the vectors*/
+        s.ensureCapacity(segmentCount * 2);
+        int count = 0;
+
+        Iterator<Segment> it = binary.getSegmentListIterator();
+        while (it.hasNext()) {
+            Segment seg = it.next();
+
+            /*For pure data segments, it is simple, we take all the data*/
+            if (seg.hasNoVector()) {
+                s.add(count++, seg.getFirstAddress(), seg.getLastAddress(), 0, seg);
+                continue;
+            }
+
+            /*Segment with jump vectors, take the portions that are not jump
+            vectors*/
+            int vfa = seg.hasRunVector() ? 736 : 738;
+            int vla = seg.hasInitVector() ? 739 : 737;
+
+            if (vfa > seg.getFirstAddress()) {
+                s.add(count++, seg.getFirstAddress(), vfa - 1, 0, seg);
+            }
+            if (vla < seg.getLastAddress()) {
+                s.add(count++, vla + 1, seg.getLastAddress(), vla + 1 - seg.getFirstAddress(), seg);
+            }
+        }
+
+        /*Check for overlap*/
+        int overlapIndex = MemoryRangeSet.findOverlap(s.firsts, s.lasts, s.keys, count);
+        if (overlapIndex != -1) {
+            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Segments of the binary file overlap. Segment: " + s.owners[overlapIndex].toString());
+        }
+
+        /*Determine run address*/
+        int runVector = -1;
+
+        /*Create JSR jumps*/
+        int extraCodeLength = 0;
+        byte[] extraCode = s.extraCode;
+
+        it = binary.getSegmentListIterator();
+        while (it.hasNext()) {
+            Segment seg = it.next();
+            if (seg.hasNoVector() == true) {
+                continue;
+            }
+
+            if (extra == true && seg.hasFullInitVector() == true) {
+                int vect = seg.getInitVector();
+                if (extraCodeLength + 3 > extraCode.length) {
+                    extraCode = Arrays.copyOf(extraCode, Math.max(16, extraCode.length * 2));
+                    s.extraCode = extraCode;
+                }
+                extraCode[extraCodeLength++] = 32;
+                extraCode[extraCodeLength++] = (byte) (vect % 256);
+                extraCode[extraCodeLength++] = (byte) (vect / 256);
+            }
+
+            if (seg.hasFullRunVector() == true) {
+                runVector = seg.getRunVector();
+            }
+        }
+
+        /*Run - generate JMP*/
+        if (extra == true && runVector > 0) {
+            if (extraCodeLength + 3 > extraCode.length) {
+                extraCode = Arrays.copyOf(extraCode, extraCode.length + 3);
+                s.extraCode = extraCode;
+            }
+            extraCode[extraCodeLength++] = 76;
+            extraCode[extraCodeLength++] = (byte) (runVector % 256);
+            extraCode[extraCodeLength++] = (byte) (runVector / 256);
+        }
+
+        /*Determine first and last address of the only DATA segment*/
+        int fa = Integer.MAX_VALUE;
+        int la = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            fa = Math.min(fa, s.firsts[i]);
+            la = Math.max(la, s.lasts[i]);
+        }
+        if (extraCodeLength > 0) {
+            fa = Math.min(fa, extraCodeAddress);
+            la = Math.max(la, extraCodeAddress + extraCodeLength - 1);
+        }
+
+        if (fa > la) {
+            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Internal error when determining lowest and highest address.");
+        }
+
+        if (la > 65_535) {
+            throw new DOS2BinaryProcessingException("Unable to create monolithic binary file. Segments of the binary file span beyond address of 65535");
+        }
+
+        /*Assemble the whole monolithic binary file*/
+        byte[] image = s.image;
+        int pos = 0;
+
+        /*Header*/
+        image[pos++] = (byte) 255;
+        image[pos++] = (byte) 255;
+        image[pos++] = (byte) (fa % 256);
+        image[pos++] = (byte) (fa / 256);
+        image[pos++] = (byte) (la % 256);
+        image[pos++] = (byte) (la / 256);
+
+        /*Merged data. Untouched addresses are zeroed*/
+        Arrays.fill(image, pos, pos + la - fa + 1, (byte) 0);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer d = s.owners[i].getDataBuffer();
+            d.position(s.offsets[i]);
+            d.get(image, pos + s.firsts[i] - fa, s.lasts[i] - s.firsts[i] + 1);
+        }
+        if (extraCodeLength > 0) {
+            System.arraycopy(extraCode, 0, image, pos + extraCodeAddress - fa, extraCodeLength);
+        }
+        pos += la - fa + 1;
+
+        /*RUN segment*/
+        image[pos++] = (byte) (736 % 256);
+        image[pos++] = (byte) (736 / 256);
+        image[pos++] = (byte) (737 % 256);
+        image[pos++] = (byte) (737 / 256);
+
+        int finalRunVector = 0;
+        if (extra == true) {
+            finalRunVector = extraCodeAddress;
+        }
+        else if (runVector > 0) {
+            finalRunVector = runVector;
+        }
+        else if (runVector < 0) {
+            finalRunVector = fa;
+        }
+
+        image[pos++] = (byte) (finalRunVector % 256);
+        image[pos++] = (byte) (finalRunVector / 256);
+
+        return pos;
+    }
+
+    /**
+     * Work arrays of one thread
+     */
+    private static final class Scratch {
+
+        /**
+         * Output image
+         */
+        final byte[] image = new byte[MAX_OUTPUT_LENGTH];
+
+        /*Occupied ranges, offset of the range data within the owning
+        segment and the owning segment*/
+        int[] firsts = new int[64];
+        int[] lasts = new int[64];
+        int[] offsets = new int[64];
+        Segment[] owners = new Segment[64];
+        long[] keys = new long[64];
+
+        /**
+         * Code that replaces INIT segments
+         */
+        byte[] extraCode = new byte[16];
+
+        void ensureCapacity(int capacity) {
+            if (firsts.length < capacity) {
+                firsts = new int[capacity];
+                lasts = new int[capacity];
+                offsets = new int[capacity];
+                owners = new Segment[capacity];
+                keys = new long[capacity];
+            }
+        }
+
+        void add(int i, int first, int last, int offset, Segment owner) {
+            firsts[i] = first;
+            lasts[i] = last;
+            offsets[i] = offset;
+            owners[i] = owner;
+        }
+    }
+
+}
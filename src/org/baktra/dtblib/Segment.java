@@ -1,5 +1,7 @@
 package org.baktra.dtblib;
 
+import java.nio.ByteBuffer;
+
 /**
  * Segment of a DOS 2 Binary File
  */
@@ -19,15 +21,18 @@ public class Segment {
      */
     private final int lastAddress;
     /**
-     * Data
+     * Data. Read-only buffer, position 0, limit equal to segment data length.
+     * Segments created by analysis are views of the buffer holding the whole
+     * binary file
      */
-    private final int[] data;
+    private final ByteBuffer data;
     
     /**
-     * Decompressed data
+     * Decompressed data. Read-only buffer, position 0, limit equal to
+     * decompressed data length
      */
-    private final int[] decompressedData;
-    private int compressionType;
+    private final ByteBuffer decompressedData;
+    private final int compressionType;
 
     /**
      * Relative byte address of the segment (location in the file)
@@ -69,24 +74,45 @@ public class Segment {
     }
     
     public Segment(int start, int[] data, int rba, int[] decompressedData,int compressionType) {
+        this(start, ByteBuffer.wrap(DTBUtils.getAsByteArray(data)), rba,
+                decompressedData == null ? null : ByteBuffer.wrap(DTBUtils.getAsByteArray(decompressedData)), compressionType);
+    }
+
+    /**
+     * Create new segment. The data are copied
+     *
+     * @param start First address
+     * @param data Data
+     * @param rba Relative byte address of the segment
+     */
+    public Segment(int start, byte[] data, int rba) {
+        this(start, ByteBuffer.wrap(data.clone()), rba, null, -1);
+    }
 
-        this.data = new int[data.length];
-        System.arraycopy(data, 0, this.data, 0, data.length);
+    /**
+     * Create new segment. The buffers are not copied, the segment keeps a
+     * read-only view of them. Bytes from position 0 to the limit are used.
+     * The buffer content must not be modified afterwards
+     */
+    Segment(int start, ByteBuffer data, int rba, ByteBuffer decompressedData, int compressionType) {
+
+        this.data = data.asReadOnlyBuffer();
+        int length = this.data.limit();
         this.firstAddress = start;
-        this.lastAddress = start + data.length - 1;
+        this.lastAddress = start + length - 1;
         this.startRBA = rba;
-        this.endRBA = rba + 4 + data.length - 1;  //rba+header+data
+        this.endRBA = rba + 4 + length - 1;  //rba+header+data
 
         int addrLo = UNKNOWN_ADDRESS;
         int addrHi = UNKNOWN_ADDRESS;
 
         /*Run address Low byte*/
         if (firstAddress <= 736 && lastAddress >= 736) {
-            addrLo = data[736 - firstAddress];
+            addrLo = getUnsignedByte(736 - firstAddress);
         }
         /*Run address High byte*/
         if (firstAddress <= 737 && lastAddress >= 737) {
-            addrHi = data[737 - firstAddress];
+            addrHi = getUnsignedByte(737 - firstAddress);
         }
 
         /*Check for FULL address*/
@@ -119,11 +145,11 @@ public class Segment {
 
         /*Init address Low byte*/
         if (firstAddress <= 738 && lastAddress >= 738) {
-            addrLo = data[738 - firstAddress];
+            addrLo = getUnsignedByte(738 - firstAddress);
         }
         /*Init address High byte*/
         if (firstAddress <= 739 && lastAddress >= 739) {
-            addrHi = data[739 - firstAddress];
+            addrHi = getUnsignedByte(739 - firstAddress);
         }
 
         /*Check for FULL address*/
@@ -151,7 +177,7 @@ public class Segment {
             initAddress = UNKNOWN_ADDRESS;
         }
         
-        this.decompressedData=decompressedData;
+        this.decompressedData = (decompressedData == null) ? null : decompressedData.asReadOnlyBuffer();
         this.isCompressed = (decompressedData!=null);
         this.compressionType=compressionType;
 
@@ -235,27 +261,132 @@ public class Segment {
     }
 
     /**
+     * Get segment header and data as an array of integers. The array is a
+     * copy. Compressed segments have the hybrid header, that is the first
+     * address, zero last address and compression type byte
      *
-     * @return
+     * @return Array with header and data
      */
     public int[] getFullData() {
+        byte[] b = new byte[getFullLength()];
+        putFullData(b, 0);
+        return DTBUtils.getAsIntArray(b);
+    }
 
-        int[] retArray = new int[data.length + 4];
-        retArray[0] = firstAddress % 256;
-        retArray[1] = firstAddress / 256;
-        retArray[2] = lastAddress % 256;
-        retArray[3] = lastAddress / 256;
-        System.arraycopy(data, 0, retArray, 4, data.length);
+    /**
+     * Get number of bytes the segment occupies in a binary file
+     *
+     * @return Length of header and data
+     */
+    public int getFullLength() {
+        return getHeaderLength() + getLength();
+    }
 
-        return retArray;
+    /**
+     * Get number of bytes of the segment header in a binary file
+     *
+     * @return Header length
+     */
+    int getHeaderLength() {
+        return isCompressed ? 5 : 4;
     }
 
     /**
+     * Put segment header to an array. Compressed segment has hybrid header
+     * with zero last address and compression type
      *
-     * @return
+     * @param target Target array
+     * @param pos Position of the first byte
+     * @return Position after the last byte
+     */
+    int putHeader(byte[] target, int pos) {
+
+        target[pos++] = (byte) (firstAddress % 256);
+        target[pos++] = (byte) (firstAddress / 256);
+        if (isCompressed) {
+            target[pos++] = 0;
+            target[pos++] = 0;
+            target[pos++] = (byte) compressionType;
+        }
+        else {
+            target[pos++] = (byte) (lastAddress % 256);
+            target[pos++] = (byte) (lastAddress / 256);
+        }
+        return pos;
+    }
+
+    /**
+     * Put segment header and data to an array
+     *
+     * @param target Target array
+     * @param pos Position of the first byte
+     * @return Position after the last byte
+     */
+    int putFullData(byte[] target, int pos) {
+
+        pos = putHeader(target, pos);
+
+        int l = getLength();
+        data.duplicate().get(target, pos, l);
+        return pos + l;
+    }
+
+    /**
+     * Get data as an array of integers. The array is a copy, changes to it
+     * are not reflected by the segment
+     *
+     * @return Array with data
      */
     public int[] getData() {
-        return data;
+        int[] retArray = new int[getLength()];
+        copyData(retArray, 0);
+        return retArray;
+    }
+
+    /**
+     * Get data as an array of bytes. The array is a copy
+     *
+     * @return Array with data
+     */
+    public byte[] getBytes() {
+        byte[] retArray = new byte[getLength()];
+        data.duplicate().get(retArray);
+        return retArray;
+    }
+
+    /**
+     * Get read-only view of the data
+     *
+     * @return Buffer with position 0 and limit equal to data length
+     */
+    public ByteBuffer getDataBuffer() {
+        return data.duplicate();
+    }
+
+    /**
+     * Get number of data bytes
+     *
+     * @return Data length
+     */
+    public int getLength() {
+        return data.limit();
+    }
+
+    /**
+     * Get one data byte as unsigned value
+     *
+     * @param index Index of the byte
+     * @return Value 0-255
+     */
+    public int getUnsignedByte(int index) {
+        return data.get(index) & 0xFF;
+    }
+
+    private void copyData(int[] target, int targetOffset) {
+        int l = getLength();
+        for (int i = 0; i < l; i++) {
+            target[targetOffset + i] = data.get(i) & 0xFF;
+        }
     }
 
     /**
@@ -325,6 +456,20 @@ public class Segment {
         return lastAddress;
     }
 
+    /**
+     * Get last address of the memory loaded by the segment. For compressed
+     * segments, it is the last address of the decompressed data
+     *
+     * @return Last loaded address, first address minus one when the segment
+     * loads no data
+     */
+    public int getLastLoadedAddress() {
+        if (decompressedData != null) {
+            return Math.min(65_535, firstAddress + decompressedData.limit() - 1);
+        }
+        return lastAddress;
+    }
+
     /**
      *
      * @return
@@ -435,14 +580,14 @@ public class Segment {
 
         if (befLength > 0) {
             portions[0] = new SegmentPortionCrate(getFirstAddress(), befLength);
-            System.arraycopy(data, 0, portions[0].portionData, 0, befLength);
+            data.duplicate().get(portions[0].portionData);
         } else {
             portions[0] = null;
         }
 
         if (aftLength > 0) {
-            portions[0] = new SegmentPortionCrate(la + 1, aftLength);
-            System.arraycopy(data, la - getFirstAddress() + 1, portions[1].portionData, 0, aftLength);
+            portions[1] = new SegmentPortionCrate(la + 1, aftLength);
+            ((ByteBuffer) data.duplicate().position(la - getFirstAddress() + 1)).get(portions[1].portionData);
         } else {
             portions[1] = null;
         }
@@ -471,31 +616,119 @@ public class Segment {
         return isCompressed;
     }
 
+    /**
+     * Get compression type of a compressed segment
+     *
+     * @return Compression type or -1 when the segment is not compressed
+     */
+    public int getCompressionType() {
+        return compressionType;
+    }
+
+    /**
+     * Get number of decompressed data bytes
+     *
+     * @return Decompressed data length or 0 when the segment is not
+     * compressed
+     */
+    public int getDecompressedLength() {
+        return (decompressedData == null) ? 0 : decompressedData.limit();
+    }
+
+    /**
+     * Get read-only view of the decompressed data
+     *
+     * @return Buffer with position 0 and limit equal to decompressed data
+     * length or null when the segment is not compressed
+     */
+    public ByteBuffer getDecompressedDataBuffer() {
+        return (decompressedData == null) ? null : decompressedData.duplicate();
+    }
+
+    /**
+     * Get decompressed data as an array of integers. The array is a copy
+     *
+     * @return Array with decompressed data or null when the segment is not
+     * compressed
+     */
+    public int[] getDecompressedData() {
+        if (decompressedData == null) {
+            return null;
+        }
+        int l = decompressedData.limit();
+        int[] retArray = new int[l];
+        for (int i = 0; i < l; i++) {
+            retArray[i] = decompressedData.get(i) & 0xFF;
+        }
+        return retArray;
+    }
+
+    /**
+     * Create copy of the segment that does not share data with any other
+     * buffer
+     *
+     * @return Detached copy of the segment
+     */
+    Segment detach() {
+
+        ByteBuffer dataCopy = ByteBuffer.wrap(getBytes());
+        ByteBuffer decompressedCopy = null;
+
+        if (decompressedData != null) {
+            byte[] decompressedBytes = new byte[decompressedData.limit()];
+            decompressedData.duplicate().get(decompressedBytes);
+            decompressedCopy = ByteBuffer.wrap(decompressedBytes);
+        }
+
+        return new Segment(firstAddress, dataCopy, startRBA, decompressedCopy, compressionType);
+    }
+
+    /**
+     * Create the same segment at another location in the file. The data are
+     * shared
+     *
+     * @param rba Relative byte address of the segment
+     * @return Segment with the given relative byte address
+     */
+    Segment relocate(int rba) {
+        if (rba == startRBA) {
+            return this;
+        }
+        return new Segment(firstAddress, data, rba, decompressedData, compressionType);
+    }
+
+    /**
+     * Create segment that holds RUN vector only
+     *
+     * @param runAddress RUN address
+     * @return New segment
+     */
+    static Segment createRunSegment(int runAddress) {
+        byte[] vector = new byte[2];
+        vector[0] = (byte) (runAddress % 256);
+        vector[1] = (byte) (runAddress / 256);
+        return new Segment(736, ByteBuffer.wrap(vector), 0, null, -1);
+    }
+
     static class SegmentPortionCrate {
 
         int address;
-        int[] portionData;
+        byte[] portionData;
 
         SegmentPortionCrate(int address, int length) {
             this.address = address;
-            this.portionData = new int[length];
+            this.portionData = new byte[length];
         }
     }
     
     public Segment[] splitUsingFirstSize(int firstSize) {
         
-        int[] firstData = new int[firstSize];
-        int[] secondData = new int[data.length-firstSize];
- 
-        for(int i=0;i<firstSize;i++) {
-            firstData[i]=data[i];
-        }
-        for(int i=0;i<secondData.length;i++) {
-            secondData[i]=data[firstSize+i];
-        }
+        /*Both parts are views of this segment's data*/
+        ByteBuffer firstData = DTBUtils.getView(data, 0, firstSize);
+        ByteBuffer secondData = DTBUtils.getView(data, firstSize, getLength()-firstSize);
         
-        Segment firstSeg = new Segment(firstAddress,firstData,0);
-        Segment secondSeg = new Segment(firstAddress+firstSize,secondData,0);
+        Segment firstSeg = new Segment(firstAddress,firstData,0,null,-1);
+        Segment secondSeg = new Segment(firstAddress+firstSize,secondData,0,null,-1);
         
         Segment[] splits = new Segment[2];
         splits[0]=firstSeg;
@@ -507,21 +740,21 @@ public class Segment {
     
     public Segment[] splitUsingMaxSize(int maxSize) {
         
-        int portions = data.length/maxSize;
-        if ((data.length % maxSize)!=0) portions+=1;
+        int portions = getLength()/maxSize;
+        if ((getLength() % maxSize)!=0) portions+=1;
         Segment[] returnedSegments = new Segment[portions];
         
-        int remainingBytes = data.length;
+        int remainingBytes = getLength();
         int currentPortion = 0;
         int currentPosition = 0;
         
         while(remainingBytes>0) {
             
             int currentPortionBytes = Math.min(remainingBytes,maxSize);
-            int[] currentPortionData = new int[currentPortionBytes];
-            System.arraycopy(data, currentPosition, currentPortionData, 0, currentPortionBytes);
+            /*Portions are views of this segment's data*/
+            ByteBuffer currentPortionData = DTBUtils.getView(data, currentPosition, currentPortionBytes);
             
-            Segment porSeg = new Segment(firstAddress+currentPosition,currentPortionData,0);
+            Segment porSeg = new Segment(firstAddress+currentPosition,currentPortionData,0,null,-1);
             returnedSegments[currentPortion]=porSeg;
             
             currentPosition+=currentPortionBytes;
@@ -0,0 +1,230 @@
+package org.baktra.dtblib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reduction of the number of segments. Segments that follow each other in
+ * the file and whose address ranges are adjacent, or separated by a small
+ * gap, are merged into one segment. Gaps are filled with zeros.
+ * <p>
+ * Segments are merged within the bunches of getInitSlicedSegmentBunches()
+ * only, so each INIT routine is called at the same point of loading.
+ * Compressed segments are never merged. A gap is not filled when it covers
+ * the RUN or INIT vector or memory loaded by any segment of the file,
+ * including the decompressed data of compressed segments, so the zeros never
+ * overwrite loaded data. The time is linear in the number of
+ * segments plus the logarithm of it for each gap.
+ */
+public class SegmentCoalescer {
+
+    /**
+     * Maximum number of bytes between merged segments
+     */
+    private final int maxGap;
+
+    /**
+     * Create new optimizer that merges adjacent segments only
+     */
+    public SegmentCoalescer() {
+        this(0);
+    }
+
+    /**
+     * Create new optimizer
+     *
+     * @param maxGap Maximum number of bytes between merged segments
+     */
+    public SegmentCoalescer(int maxGap) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("Maximum gap must not be negative");
+        }
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Merge segments of a binary file
+     *
+     * @param source Analyzed binary file, not modified
+     * @return New binary file and savings
+     */
+    public CoalescingResultCrate optimize(DOS2Binary source) {
+
+        List<Segment> segments = source.getSegments();
+        List<Segment> merged = coalesce(segments);
+        DOS2Binary result = new DOS2Binary(source.getFileName(), source.getCompressionHandling(), merged);
+
+        long gapBytes = 0;
+        for (Segment s : merged) {
+            gapBytes += s.getLength();
+        }
+        for (Segment s : segments) {
+            gapBytes -= s.getLength();
+        }
+
+        return new CoalescingResultCrate(result, segments.size(), merged.size(), getTotalLength(segments), result.getFileLength(), gapBytes);
+    }
+
+    /**
+     * Merge segments
+     *
+     * @param segments Segments, in order of the file
+     * @return New list of segments
+     */
+    List<Segment> coalesce(List<Segment> segments) {
+
+        /*Memory loaded by the file, gaps must not cover it. Compressed
+        segments load their decompressed data*/
+        MemoryRangeSet loaded = null;
+        if (maxGap > 0) {
+            ArrayList<MemoryRange> ranges = new ArrayList<>(segments.size());
+            for (Segment s : segments) {
+                if (s.getLastLoadedAddress() >= s.getFirstAddress()) {
+                    ranges.add(new MemoryRange(s.getFirstAddress(), s.getLastLoadedAddress()));
+                }
+            }
+            loaded = MemoryRangeSet.of(ranges);
+        }
+
+        ArrayList<Segment> result = new ArrayList<>(segments.size());
+        int n = segments.size();
+        int i = 0;
+
+        while (i < n) {
+            Segment first = segments.get(i);
+            int last = first.getLastAddress();
+            int j = i + 1;
+
+            /*A segment with INIT vector ends its bunch*/
+            if (!first.isCompressed() && !first.hasInitVector()) {
+                while (j < n) {
+                    Segment next = segments.get(j);
+                    if (next.isCompressed() || !canJoin(last, next.getFirstAddress(), loaded)) {
+                        break;
+                    }
+                    last = next.getLastAddress();
+                    j++;
+                    if (next.hasInitVector()) {
+                        break;
+                    }
+                }
+            }
+
+            if (j == i + 1) {
+                result.add(first);
+            }
+            else {
+                result.add(merge(segments, i, j, last));
+            }
+            i = j;
+        }
+
+        return result;
+    }
+
+    /**
+     * Check whether a segment can follow a segment ending at the given
+     * address
+     */
+    private boolean canJoin(int last, int nextFirst, MemoryRangeSet loaded) {
+
+        int gap = nextFirst - last - 1;
+        if (gap == 0) {
+            return true;
+        }
+        if (gap < 0 || gap > maxGap) {
+            return false;
+        }
+
+        /*Zeros must not overwrite vectors or loaded data*/
+        int gapFirst = last + 1;
+        int gapLast = nextFirst - 1;
+        if (gapFirst <= 739 && gapLast >= 736) {
+            return false;
+        }
+        return !loaded.overlaps(gapFirst, gapLast);
+    }
+
+    /**
+     * Merge segments from index i to index j-1
+     */
+    private static Segment merge(List<Segment> segments, int i, int j, int last) {
+
+        int firstAddress = segments.get(i).getFirstAddress();
+        byte[] merged = new byte[last - firstAddress + 1];
+
+        for (int k = i; k < j; k++) {
+            Segment s = segments.get(k);
+            ByteBuffer d = s.getDataBuffer();
+            d.get(merged, s.getFirstAddress() - firstAddress, d.remaining());
+        }
+
+        return new Segment(firstAddress, ByteBuffer.wrap(merged), 0, null, -1);
+    }
+
+    private static long getTotalLength(List<Segment> segments) {
+        long length = 2;
+        for (Segment s : segments) {
+            length += s.getFullLength();
+        }
+        return length;
+    }
+
+    /**
+     * Result of merging of segments
+     */
+    public static class CoalescingResultCrate {
+
+        /**
+         * Binary file with merged segments
+         */
+        public final DOS2Binary binary;
+        /**
+         * Number of segments before merging
+         */
+        public final int originalSegmentCount;
+        /**
+         * Number of segments after merging
+         */
+        public final int newSegmentCount;
+        /**
+         * Length of the binary file before merging, with one $FFFF header
+         */
+        public final long originalLength;
+        /**
+         * Length of the binary file after merging
+         */
+        public final long newLength;
+        /**
+         * Number of zero bytes that fill the gaps
+         */
+        public final long gapBytes;
+
+        CoalescingResultCrate(DOS2Binary binary, int originalSegmentCount, int newSegmentCount, long originalLength, long newLength, long gapBytes) {
+            this.binary = binary;
+            this.originalSegmentCount = originalSegmentCount;
+            this.newSegmentCount = newSegmentCount;
+            this.originalLength = originalLength;
+            this.newLength = newLength;
+            this.gapBytes = gapBytes;
+        }
+
+        /**
+         *
+         * @return Number of segments saved
+         */
+        public int getSavedSegments() {
+            return originalSegmentCount - newSegmentCount;
+        }
+
+        /**
+         *
+         * @return Number of bytes saved
+         */
+        public long getSavedBytes() {
+            return originalLength - newLength;
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+package org.baktra.dtblib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import org.baktra.dtblib.DOS2Binary.CompressionHandling;
+
+/**
+ * Incremental reader of DOS 2 Binary File segments. Segments are read one at
+ * a time from an input stream or a channel, so only a bounded window of the
+ * file is held in memory. The file is checked the same way
+ * DOS2Binary.analyzeFromFile() checks it, but the file may be longer than
+ * 16 MB. Relative byte addresses of segments are int values, so segments must
+ * begin below offset of about 2 GB.
+ */
+public class SegmentReader implements Closeable {
+
+    /**
+     * Initial size of the read window. Holds the largest possible plain
+     * segment, that is 65536 bytes of data, and compressed segments whose
+     * stream is not much longer than the data
+     */
+    private static final int INITIAL_WINDOW_SIZE = 65_536 + 65_536 / 8 + 1_024;
+
+    /**
+     * Maximum size of the read window. A valid compressed stream can be
+     * longer than its decompressed data, e.g. ZX0 with alternating one byte
+     * literals and new offset matches. No operation of the codecs takes more
+     * than 8 bytes of stream per decompressed byte, so the window grows up to
+     * this size before a stream is reported as continuing beyond end of file
+     */
+    private static final int MAX_WINDOW_SIZE = 8 * 65_536 + 1_024;
+
+    /**
+     * Segments must begin below this offset, so that relative byte
+     * addresses and offsets within the window fit an int
+     */
+    private static final long MAX_SEGMENT_OFFSET = Integer.MAX_VALUE - MAX_WINDOW_SIZE;
+
+    /**
+     * Input channel
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * File name used in error messages
+     */
+    private final String filename;
+
+    /**
+     * Header is required to be present
+     */
+    private final boolean headerRequired;
+
+    /**
+     * Compressed segment handling
+     */
+    private final CompressionHandling cprsHandling;
+
+    /**
+     * Read window. Bytes between position and limit are not consumed yet
+     */
+    private ByteBuffer window;
+
+    /**
+     * Offset of the window position within the file
+     */
+    private long position;
+
+    /**
+     * Decompression of compressed segments
+     */
+    private final HybridDecompression decompression;
+
+    /**
+     * End of input reached
+     */
+    private boolean eof;
+
+    /**
+     * Header of the file already processed
+     */
+    private boolean started;
+
+    /**
+     * Create new reader. Header is required, compressed segments are
+     * reported as not supported
+     *
+     * @param in Input stream
+     * @param filename File name used in error messages
+     */
+    public SegmentReader(InputStream in, String filename) {
+        this(Channels.newChannel(in), filename, true, CompressionHandling.REPORT_NOT_SUPPORTED);
+    }
+
+    /**
+     * Create new reader
+     *
+     * @param in Input stream
+     * @param filename File name used in error messages
+     * @param headerRequired Indicates whether the $FFFF header is required
+     * @param cprsHandling Indicates how to handle compressed segments
+     */
+    public SegmentReader(InputStream in, String filename, boolean headerRequired, CompressionHandling cprsHandling) {
+        this(Channels.newChannel(in), filename, headerRequired, cprsHandling);
+    }
+
+    /**
+     * Create new reader. Header is required, compressed segments are
+     * reported as not supported
+     *
+     * @param channel Input channel
+     * @param filename File name used in error messages
+     */
+    public SegmentReader(ReadableByteChannel channel, String filename) {
+        this(channel, filename, true, CompressionHandling.REPORT_NOT_SUPPORTED);
+    }
+
+    /**
+     * Create new reader
+     *
+     * @param channel Input channel
+     * @param filename File name used in error messages
+     * @param headerRequired Indicates whether the $FFFF header is required
+     * @param cprsHandling Indicates how to handle compressed segments
+     */
+    public SegmentReader(ReadableByteChannel channel, String filename, boolean headerRequired, CompressionHandling cprsHandling) {
+        this.channel = channel;
+        this.filename = filename;
+        this.headerRequired = headerRequired;
+        this.cprsHandling = cprsHandling;
+        this.window = ByteBuffer.allocate(INITIAL_WINDOW_SIZE);
+        this.window.flip();
+        this.decompression = new HybridDecompression();
+        this.position = 0;
+        this.eof = false;
+        this.started = false;
+    }
+
+    /**
+     * Read next segment. The returned segment does not share data with the
+     * reader. When an exception is thrown, the reader cannot continue.
+     *
+     * @return Next segment or null when there are no more segments
+     * @throws IOException
+     * @throws DOS2BinaryException
+     */
+    public Segment next() throws IOException, DOS2BinaryException {
+
+        /*Check the header first*/
+        if (!started) {
+            readHeader();
+            started = true;
+        }
+
+        /*No more segments*/
+        if (!ensure(1)) {
+            return null;
+        }
+
+        if (position > MAX_SEGMENT_OFFSET) {
+            throw new DOS2BinaryException(filename, "Binary file is too long. Segments beyond offset of 2 GB are not supported.", (int) MAX_SEGMENT_OFFSET);
+        }
+        int lastSegPos = (int) position;
+
+        /*Is there another 255 255*/
+        require(2);
+        if (peek(0) == 255 && peek(1) == 255) {
+            skip(2);
+        }
+
+        /*Get first address and last address*/
+        require(2);
+        int w1 = peek(0) + 256 * peek(1);
+        skip(2);
+
+        require(2);
+        int w2 = peek(0) + 256 * peek(1);
+        skip(2);
+
+        /*Possible compressed segment*/
+        if (cprsHandling != CompressionHandling.IGNORE_COMPRESSION && w2 == 0) {
+
+            /*Compression type byte must be present*/
+            require(1);
+
+            /*Get as much data as possible, then find end of the segment.
+            When the stream fails within a full window, it may continue
+            beyond the window, so retry with larger window*/
+            HybridDecompression.ResultCrate rc;
+            while (true) {
+                fill();
+                decompression.setOffsetBase((int) position);
+                try {
+                    rc = decompression.process(window.slice(), 0, w1, lastSegPos, filename);
+                    break;
+                }
+                catch (DOS2BinaryException e) {
+                    if (eof || window.remaining() < window.capacity() || !grow()) {
+                        throw e;
+                    }
+                }
+            }
+            Segment s = rc.newSegment.detach();
+            skip(rc.newPosition);
+
+            if (cprsHandling == CompressionHandling.REPORT_NOT_SUPPORTED) {
+                throw new DOS2BinaryException(filename, "Compressed segments not supported by the selected function", lastSegPos);
+            }
+            return s;
+        }
+
+        /*Check for negative segment size*/
+        if (w2 < w1) {
+            throw new DOS2BinaryException(filename, DOS2Binary.getNegativeSegmentSizeMessage(w1, w2), lastSegPos);
+        }
+
+        /*Create new segment*/
+        int segmentLength = w2 - w1 + 1;
+        require(segmentLength);
+        Segment s = new Segment(w1, DTBUtils.getView(window, window.position(), segmentLength), lastSegPos, null, -1).detach();
+        skip(segmentLength);
+
+        return s;
+    }
+
+    /**
+     * Get offset of the next unread byte within the file
+     *
+     * @return Offset
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Close the underlying channel
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readHeader() throws IOException, DOS2BinaryException {
+
+        boolean hasTwoBytes = ensure(2);
+
+        /*If a header is required to be present, check for header (255 255)*/
+        if (headerRequired == true) {
+
+            if (!hasTwoBytes) {
+                throw new DOS2BinaryException(filename, "The binary file is too short to have a header", 0, true);
+            }
+            if (peek(0) != 255 || peek(1) != 255) {
+                throw new DOS2BinaryException(filename, "Binary file header not found. First two bytes do not have values of 255 $FF", 0, true);
+            }
+            skip(2);
+        }
+        else if (hasTwoBytes && peek(0) == 255 && peek(1) == 255) {
+            skip(2);
+        }
+    }
+
+    /**
+     * Ensure that the window holds at least given number of bytes
+     *
+     * @param count Number of bytes
+     * @return False when the input ended before the bytes were available
+     */
+    private boolean ensure(int count) throws IOException {
+
+        if (window.remaining() >= count) {
+            return true;
+        }
+
+        window.compact();
+        while (window.position() < count && !eof) {
+            if (channel.read(window) == -1) {
+                eof = true;
+            }
+        }
+        window.flip();
+
+        return window.remaining() >= count;
+    }
+
+    /**
+     * Fill the window as much as possible
+     */
+    private void fill() throws IOException {
+        ensure(window.capacity());
+    }
+
+    /**
+     * Double the window size, keeping the bytes not consumed
+     *
+     * @return False when the window has the maximum size already
+     */
+    private boolean grow() {
+        if (window.capacity() >= MAX_WINDOW_SIZE) {
+            return false;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_WINDOW_SIZE, window.capacity() * 2));
+        larger.put(window);
+        larger.flip();
+        window = larger;
+        return true;
+    }
+
+    private void require(int count) throws IOException, DOS2BinaryException {
+        if (!ensure(count)) {
+            throw new DOS2BinaryException(filename, "Segment or segment header continues beyond end of binary file", (int) position);
+        }
+    }
+
+    private int peek(int index) {
+        return window.get(window.position() + index) & 0xFF;
+    }
+
+    private void skip(int count) {
+        window.position(window.position() + count);
+        position += count;
+    }
+
+}
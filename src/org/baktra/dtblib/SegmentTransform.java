@@ -0,0 +1,184 @@
+package org.baktra.dtblib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transformation of the segment list of a binary file. Transformations can be
+ * chained, the result of a chain is a new binary file created directly from
+ * the segments, without writing the segments to bytes and analyzing them
+ * again. Segments not changed by a transformation are shared with the source
+ * file. Compressed segments are never split or merged.
+ */
+@FunctionalInterface
+public interface SegmentTransform {
+
+    /**
+     * Transform segments
+     *
+     * @param segments Segments, in order of the file. The list must not be
+     * modified
+     * @return New list of segments
+     * @throws DOS2BinaryProcessingException
+     */
+    List<Segment> apply(List<Segment> segments) throws DOS2BinaryProcessingException;
+
+    /**
+     * Chain transformations
+     *
+     * @param next Transformation applied to the result of this
+     * transformation
+     * @return Chained transformation
+     */
+    default SegmentTransform andThen(SegmentTransform next) {
+        return segments -> next.apply(apply(segments));
+    }
+
+    /**
+     * Transform binary file
+     *
+     * @param source Analyzed binary file, not modified
+     * @return New binary file with the same name and compressed segment
+     * handling
+     * @throws DOS2BinaryProcessingException
+     */
+    default DOS2Binary applyTo(DOS2Binary source) throws DOS2BinaryProcessingException {
+        return new DOS2Binary(source.getFileName(), source.getCompressionHandling(), apply(source.getSegments()));
+    }
+
+    /**
+     * Split segments longer than the maximum size
+     *
+     * @param maxSize Maximum number of data bytes of a segment
+     * @return Transformation
+     */
+    static SegmentTransform splitByMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum segment size must be at least 1");
+        }
+        return segments -> {
+            ArrayList<Segment> result = new ArrayList<>(segments.size());
+            for (Segment s : segments) {
+                if (s.getLength() <= maxSize || s.isCompressed()) {
+                    result.add(s);
+                }
+                else {
+                    for (Segment ns : s.splitUsingMaxSize(maxSize)) {
+                        result.add(ns);
+                    }
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Merge segments that follow each other in the file and in memory. A
+     * segment with INIT vector ends the merging, so the INIT routine is
+     * called at the same point of loading
+     *
+     * @return Transformation
+     */
+    static SegmentTransform mergeAdjacent() {
+        return coalesce(0);
+    }
+
+    /**
+     * Merge segments that follow each other in the file and whose address
+     * ranges are adjacent or separated by a gap. See SegmentCoalescer
+     *
+     * @param maxGap Maximum number of bytes between merged segments, filled
+     * with zeros
+     * @return Transformation
+     */
+    static SegmentTransform coalesce(int maxGap) {
+        return new SegmentCoalescer(maxGap)::coalesce;
+    }
+
+    /**
+     * Remove RUN and INIT vectors. Segments that hold vectors only are
+     * dropped, other segments with vectors are replaced with the portions
+     * before and after the vectors. Compressed segments are kept
+     *
+     * @return Transformation
+     */
+    static SegmentTransform stripVectors() {
+        return segments -> {
+            ArrayList<Segment> result = new ArrayList<>(segments.size());
+            for (Segment s : segments) {
+                if (s.hasNoVector() || s.isCompressed()) {
+                    result.add(s);
+                    continue;
+                }
+
+                int vfa = s.hasRunVector() ? 736 : 738;
+                int vla = s.hasInitVector() ? 739 : 737;
+                ByteBuffer d = s.getDataBuffer();
+
+                /*Portions are views of the segment data*/
+                if (vfa > s.getFirstAddress()) {
+                    int l = vfa - s.getFirstAddress();
+                    result.add(new Segment(s.getFirstAddress(), DTBUtils.getView(d, 0, l), 0, null, -1));
+                }
+                if (vla < s.getLastAddress()) {
+                    int l = s.getLastAddress() - vla;
+                    result.add(new Segment(vla + 1, DTBUtils.getView(d, vla + 1 - s.getFirstAddress(), l), 0, null, -1));
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Append segment with RUN vector pointing to the first address of the
+     * first segment. Same as DOS2Binary.createArtificialRunVector()
+     *
+     * @return Transformation
+     */
+    static SegmentTransform addRunVector() {
+        return segments -> {
+            if (segments.isEmpty()) {
+                return segments;
+            }
+            ArrayList<Segment> result = new ArrayList<>(segments);
+            result.add(Segment.createRunSegment(segments.get(0).getFirstAddress()));
+            return result;
+        };
+    }
+
+    /**
+     * Append segment with RUN vector
+     *
+     * @param runAddress RUN address
+     * @return Transformation
+     */
+    static SegmentTransform addRunVector(int runAddress) {
+        if (runAddress < 0 || runAddress > 65_535) {
+            throw new IllegalArgumentException("RUN address must be in range 0-65535");
+        }
+        return segments -> {
+            ArrayList<Segment> result = new ArrayList<>(segments);
+            result.add(Segment.createRunSegment(runAddress));
+            return result;
+        };
+    }
+
+    /**
+     * Remove segments without data
+     *
+     * @return Transformation
+     */
+    static SegmentTransform dropEmpty() {
+        return segments -> {
+            ArrayList<Segment> result = new ArrayList<>(segments.size());
+            for (Segment s : segments) {
+                if (s.getLength() > 0) {
+                    result.add(s);
+                }
+            }
+            return result;
+        };
+    }
+
+}
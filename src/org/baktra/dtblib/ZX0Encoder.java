@@ -0,0 +1,402 @@
+package org.baktra.dtblib;
+
+import java.util.Arrays;
+
+/**
+ * ZX0 compressor producing streams accepted by
+ * HybridDecompression.decompressZX0(). The parse is chosen by a forward
+ * dynamic programming over positions. Each position keeps several cheapest
+ * ways of reaching it, distinguished by the last offset, because the cost of
+ * the following tokens depends on it. Match candidates for all positions
+ * are searched in parallel before the parse.
+ * <p>
+ * The stream starts with a literal run. A literal run is followed by a match
+ * with the last offset (bit 0) or with a new offset (bit 1). A match is
+ * followed by a literal run (bit 0) or by a match with a new offset (bit 1).
+ * Offsets are at most 32640, new offset match has at least 2 bytes.
+ * <p>
+ * An instance is not thread-safe, but can be reused.
+ */
+final class ZX0Encoder {
+
+    private static final int MAX_OFFSET = 32_640;
+    private static final int KIND_LITERAL = 0;
+    private static final int KIND_REP = 1;
+    private static final int KIND_NEW = 2;
+
+    /**
+     * Number of positions processed between time budget checks
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 1_024;
+
+    /**
+     * Maximum number of candidates examined for one position when the time
+     * budget is exceeded
+     */
+    private static final int FAST_MAX_CHAIN = 16;
+
+    /**
+     * Number of ways of reaching each position that are kept
+     */
+    private final int arrivals;
+
+    /**
+     * Matches at least this long are taken without evaluating the positions
+     * they cover
+     */
+    private final int niceLength;
+
+    /**
+     * Match candidates
+     */
+    private final MatchFinder finder;
+
+    /*Arrivals, arrivals slots per position, ordered by cost*/
+    private int[] aCost = new int[0];
+    private int[] aRep = new int[0];
+    private int[] aLit = new int[0];
+    private int[] aFrom = new int[0];
+    private byte[] aFromSlot = new byte[0];
+    private byte[] aKind = new byte[0];
+    private byte[] aCount = new byte[0];
+
+    /*Bit writer*/
+    private byte[] out;
+    private int outPos;
+    private int bitPos;
+    private int bitMask;
+    private boolean backtrack;
+
+    /**
+     * Create new compressor
+     *
+     * @param arrivals Number of ways of reaching each position that are kept
+     * (1-127)
+     * @param maxChain Maximum number of match candidates examined for one
+     * position
+     * @param niceLength Matches at least this long are taken at once
+     */
+    ZX0Encoder(int arrivals, int maxChain, int niceLength) {
+        this.arrivals = arrivals;
+        this.niceLength = niceLength;
+        this.finder = new MatchFinder(MAX_OFFSET, maxChain, niceLength);
+    }
+
+    /**
+     * Compress data
+     *
+     * @param src Source array
+     * @param off Offset of the first byte
+     * @param len Number of bytes, at least 1
+     * @param deadline Value of System.nanoTime() after which the rest of the
+     * data is compressed in the fastest mode. Long.MAX_VALUE for no limit
+     * @return ZX0 stream
+     */
+    byte[] compress(byte[] src, int off, int len, long deadline) {
+
+        byte[] data = (off == 0 && src.length == len) ? src : Arrays.copyOfRange(src, off, off + len);
+
+        finder.find(data, len, deadline, FAST_MAX_CHAIN);
+        int last = parse(data, len, deadline);
+        return emit(data, len, last);
+    }
+
+    /**
+     * Find the cheapest parse
+     *
+     * @return Slot of the cheapest arrival at the end of data
+     */
+    private int parse(byte[] data, int len, long deadline) {
+
+        int slots = (len + 1) * arrivals;
+        if (aCost.length < slots) {
+            aCost = new int[slots];
+            aRep = new int[slots];
+            aLit = new int[slots];
+            aFrom = new int[slots];
+            aFromSlot = new byte[slots];
+            aKind = new byte[slots];
+        }
+        if (aCount.length < len + 1) {
+            aCount = new byte[len + 1];
+        }
+        Arrays.fill(aCount, 0, len + 1, (byte) 0);
+
+        /*Start of the stream, initial last offset is 1*/
+        aCost[0] = 0;
+        aRep[0] = 1;
+        aLit[0] = 0;
+        aCount[0] = 1;
+
+        int skipUntil = 0;
+        int expanded = arrivals;
+        boolean fast = false;
+
+        for (int i = 0; i < len; i++) {
+
+            if (!fast && (i % DEADLINE_CHECK_INTERVAL) == 0 && System.nanoTime() > deadline) {
+                fast = true;
+                expanded = 1;
+            }
+
+            /*Positions covered by a long match are not expanded*/
+            if (i < skipUntil) {
+                continue;
+            }
+
+            int base = i * arrivals;
+            int count = Math.min(aCount[i], expanded);
+
+            for (int s = 0; s < count; s++) {
+
+                int cost = aCost[base + s];
+                int rep = aRep[base + s];
+                int lit = aLit[base + s];
+
+                /*Literal*/
+                int litCost = 8 + ((lit == 0) ? ((i == 0) ? 1 : 2) : gammaBits(lit + 1) - gammaBits(lit));
+                add(i + 1, cost + litCost, rep, lit + 1, i, s, KIND_LITERAL);
+
+                /*Match with the last offset, only after literals*/
+                if (lit > 0 && rep <= i) {
+                    int cap = Math.min(niceLength, len - i);
+                    int l = 0;
+                    while (l < cap && data[i + l] == data[i + l - rep]) {
+                        l++;
+                    }
+                    if (l == niceLength) {
+                        l = MatchFinder.extend(data, len, i, rep, l);
+                        add(i + l, cost + 1 + gammaBits(l), rep, 0, i, s, KIND_REP);
+                        skipUntil = Math.max(skipUntil, i + l);
+                    }
+                    else if (fast) {
+                        if (l > 0) {
+                            add(i + l, cost + 1 + gammaBits(l), rep, 0, i, s, KIND_REP);
+                        }
+                    }
+                    else {
+                        for (int k = 1; k <= l; k++) {
+                            add(i + k, cost + 1 + gammaBits(k), rep, 0, i, s, KIND_REP);
+                        }
+                    }
+                }
+            }
+
+            /*Matches with a new offset, only the cheapest arrival matters*/
+            if (i == 0) {
+                continue;
+            }
+
+            int cost = aCost[base];
+            int ccount = finder.getCount(i);
+            int shorter = 1;
+
+            for (int c = 0; c < ccount; c++) {
+                int offset = finder.getOffset(i, c);
+                int l = finder.getLength(i, c);
+                int offsetCost = cost + 1 + gammaBits((offset - 1) / 128 + 1) + 8 - 1;
+
+                if (l == niceLength) {
+                    l = MatchFinder.extend(data, len, i, offset, l);
+                    add(i + l, offsetCost + gammaBits(l - 1), offset, 0, i, 0, KIND_NEW);
+                    skipUntil = Math.max(skipUntil, i + l);
+                }
+                else if (fast) {
+                    if (c == ccount - 1) {
+                        add(i + l, offsetCost + gammaBits(l - 1), offset, 0, i, 0, KIND_NEW);
+                    }
+                }
+                else {
+                    /*Shorter lengths are cheaper with the nearer offsets*/
+                    for (int k = shorter + 1; k <= l; k++) {
+                        add(i + k, offsetCost + gammaBits(k - 1), offset, 0, i, 0, KIND_NEW);
+                    }
+                }
+                shorter = l;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Add a way of reaching a position. Only the cheapest way is kept for
+     * each last offset and literal state
+     */
+    private void add(int pos, int cost, int rep, int lit, int from, int fromSlot, int kind) {
+
+        int base = pos * arrivals;
+        int count = aCount[pos];
+        boolean isLit = lit > 0;
+
+        /*Same state already present*/
+        for (int s = 0; s < count; s++) {
+            if (aRep[base + s] == rep && (aLit[base + s] > 0) == isLit) {
+                if (cost >= aCost[base + s]) {
+                    return;
+                }
+                /*Remove the more expensive one*/
+                for (int t = s; t < count - 1; t++) {
+                    move(base + t + 1, base + t);
+                }
+                count--;
+                break;
+            }
+        }
+
+        if (count == arrivals && cost >= aCost[base + count - 1]) {
+            aCount[pos] = (byte) count;
+            return;
+        }
+
+        /*Find place, keep order by cost*/
+        int j = Math.min(count, arrivals - 1);
+        while (j > 0 && aCost[base + j - 1] > cost) {
+            if (j < arrivals) {
+                move(base + j - 1, base + j);
+            }
+            j--;
+        }
+
+        aCost[base + j] = cost;
+        aRep[base + j] = rep;
+        aLit[base + j] = lit;
+        aFrom[base + j] = from;
+        aFromSlot[base + j] = (byte) fromSlot;
+        aKind[base + j] = (byte) kind;
+        aCount[pos] = (byte) Math.min(count + 1, arrivals);
+    }
+
+    private void move(int from, int to) {
+        aCost[to] = aCost[from];
+        aRep[to] = aRep[from];
+        aLit[to] = aLit[from];
+        aFrom[to] = aFrom[from];
+        aFromSlot[to] = aFromSlot[from];
+        aKind[to] = aKind[from];
+    }
+
+    /**
+     * Write the stream for the parse ending with the given arrival
+     */
+    private byte[] emit(byte[] data, int len, int lastSlot) {
+
+        /*Collect the tokens from the end*/
+        int tokens = 0;
+        int pos = len;
+        int slot = lastSlot;
+        int[] path = new int[16];
+        while (pos > 0) {
+            if (tokens == path.length) {
+                path = Arrays.copyOf(path, tokens * 2);
+            }
+            path[tokens++] = pos * arrivals + slot;
+            int a = pos * arrivals + slot;
+            pos = aFrom[a];
+            slot = aFromSlot[a];
+        }
+
+        out = new byte[(aCost[len * arrivals + lastSlot] + 18) / 8 + 8];
+        outPos = 0;
+        bitMask = 0;
+        backtrack = false;
+
+        boolean afterMatch = false;
+        pos = 0;
+        int t = tokens - 1;
+        while (t >= 0) {
+
+            int a = path[t];
+            int kind = aKind[a];
+
+            if (kind == KIND_LITERAL) {
+                /*Merge the literal run*/
+                int runStart = pos;
+                while (t >= 0 && aKind[path[t]] == KIND_LITERAL) {
+                    t--;
+                }
+                int runEnd = (t >= 0) ? aFrom[path[t]] : len;
+                if (afterMatch) {
+                    putBit(0);
+                }
+                putGamma(runEnd - runStart);
+                for (int k = runStart; k < runEnd; k++) {
+                    putByte(data[k]);
+                }
+                pos = runEnd;
+                afterMatch = false;
+                continue;
+            }
+
+            int target = a / arrivals;
+            int length = target - pos;
+            if (kind == KIND_REP) {
+                putBit(0);
+                putGamma(length);
+            }
+            else {
+                int offset = aRep[a];
+                putBit(1);
+                putGamma((offset - 1) / 128 + 1);
+                putByte((byte) ((127 - ((offset - 1) % 128)) << 1));
+                backtrack = true;
+                putGamma(length - 1);
+            }
+            pos = target;
+            afterMatch = true;
+            t--;
+        }
+
+        /*End of stream*/
+        putBit(1);
+        putGamma(256);
+
+        byte[] result = Arrays.copyOf(out, outPos);
+        out = null;
+        return result;
+    }
+
+    private void putByte(byte b) {
+        out[outPos++] = b;
+    }
+
+    private void putBit(int bit) {
+        if (backtrack) {
+            if (bit != 0) {
+                out[outPos - 1] |= 1;
+            }
+            backtrack = false;
+            return;
+        }
+        if (bitMask == 0) {
+            bitMask = 0x80;
+            bitPos = outPos;
+            out[outPos++] = 0;
+        }
+        if (bit != 0) {
+            out[bitPos] |= bitMask;
+        }
+        bitMask >>>= 1;
+    }
+
+    /**
+     * Put interlaced Elias gamma code
+     */
+    private void putGamma(int value) {
+        int i = Integer.highestOneBit(value) >>> 1;
+        while (i != 0) {
+            putBit(0);
+            putBit((value & i) != 0 ? 1 : 0);
+            i >>>= 1;
+        }
+        putBit(1);
+    }
+
+    /**
+     * Get number of bits of Elias gamma code
+     */
+    private static int gammaBits(int value) {
+        return 2 * (31 - Integer.numberOfLeadingZeros(value)) + 1;
+    }
+
+}